@@ -6,6 +6,7 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 import java.util.Scanner;
 
 public class Client {
@@ -34,9 +35,10 @@ public class Client {
 	public static void execute(String host, int port) {
 		Protocol p = new Protocol(); // for encoding user input according to wire protocol
 		try{
-	        Socket socket = new Socket(host, port);
+	        // open the socket through a channel so files can be sent to it with FileChannel.transferTo
+	        Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
 	        DataOutputStream out = new DataOutputStream(socket.getOutputStream()); //outputs to the server
-	        ClientThread listener = new ClientThread(socket); 
+	        ClientThread listener = new ClientThread(socket, out); 
 	        listener.start(); // handle listening from the server
 
 	        Scanner scanner = new Scanner(System.in);
@@ -44,12 +46,24 @@ public class Client {
 	        
 	        
 	        while((userInput = scanner.nextLine()) != null) {
+	        	// file commands need local info (the file size, or how much was already downloaded) added before they're sent
+	        	if (userInput.startsWith("SEND_FILE ")) {
+	        		userInput = listener.prepareUpload(userInput);
+	        		if (userInput == null) {
+	        			continue;
+	        		}
+	        	}
+	        	else if (userInput.startsWith("GET_FILE ")) {
+	        		userInput = listener.prepareDownload(userInput);
+	        	}
 	        	byte[] userInputBytes = p.encode(userInput);
 	        	char type = 's'; // in our case, we are always sending strings
-	        	out.writeChar(type);
-	        	out.writeInt(userInputBytes.length);
-	        	out.write(userInputBytes);
-	            out.flush();
+	        	synchronized (out) { // uploads write to the same stream from their own threads
+	        		out.writeChar(type);
+	        		out.writeInt(userInputBytes.length);
+	        		out.write(userInputBytes);
+	        		out.flush();
+	        	}
 	            if (userInput.equals("QUIT")) {
 	            	listener.stopRunning();
 	            	System.out.println(">> Thanks for using the chat app!");
@@ -3,27 +3,42 @@
  * The thread helps it so that the client can both read from and write to the server at the same time.
  * We got the inspiration for this code from this site:
  * https://stackoverflow.com/questions/28924942/how-to-read-input-from-a-socket-using-threads-java
+ * It also handles the file transfer lines from the server, starting uploads and saving downloads into the downloads folder.
  */
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
 
 public class ClientThread extends Thread implements Runnable {
 	private Socket socket;
-	private BufferedReader in;
+	private DataInputStream in;
+	private DataOutputStream out;
 	private boolean running = true;
-	
-	public ClientThread(Socket socket){
+	private final String downloadFolder = "downloads";
+	private HashMap<String, File> pendingUploads = new HashMap<String, File>(); // file name to file, until the server replies
+	private HashMap<Integer, FileUploader> uploads = new HashMap<Integer, FileUploader>();
+	private HashMap<String, FileChannel> downloads = new HashMap<String, FileChannel>(); // by sender/name
+	private Protocol p = new Protocol();
+	private byte[] chunkBuffer = new byte[Protocol.CHUNK_SIZE];
+
+	public ClientThread(Socket socket, DataOutputStream out){
 		this.socket = socket;
-    
+		this.out = out;
+
 		try{
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream())); // get input from the server
+			// we read bytes rather than using a BufferedReader because file data comes in on the same stream as the text
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream())); // get input from the server
 		}
 		catch(IOException e){
 			System.err.println("Error created a buffered reader: " + e);
 		}
 	}
-	
+
 	/**
 	 * This method sets the boolean running to false so that the thread will stop running
 	 * This is only called when the user enters QUIT
@@ -31,17 +46,102 @@ public class ClientThread extends Thread implements Runnable {
 	public void stopRunning() {
 		running = false;
 	}
-	
+
+	/**
+	 * This method turns the SEND_FILE @username path the user typed into the command the server expects,
+	 * SEND_FILE @username size modified name, and remembers the path for when the server says to start.
+	 * @param 	userInput
+	 * @return	the command to send, or null if the file can't be sent
+	 */
+	public synchronized String prepareUpload(String userInput) {
+		String[] parts = userInput.trim().split(" ", 3);
+		if (parts.length < 3) {
+			System.out.println(">> Usage: SEND_FILE @username path");
+			return null;
+		}
+		File file = new File(parts[2]);
+		if (!file.isFile()) {
+			System.out.println(">> Sorry, " + parts[2] + " is not a file.");
+			return null;
+		}
+		pendingUploads.put(file.getName(), file);
+		return "SEND_FILE " + parts[1] + " " + file.length() + " " + file.lastModified() + " " + file.getName();
+	}
+
+	/**
+	 * This method adds the offset and size to a GET_FILE sender/name command if part of the file was already downloaded,
+	 * so the server only sends the rest. The server starts over if the size isn't the size of the file it has.
+	 * @param 	userInput
+	 * @return	the command to send
+	 */
+	public String prepareDownload(String userInput) {
+		String[] parts = userInput.trim().split(" ");
+		if (parts.length < 2 || parts[1].indexOf('/') < 0) {
+			return userInput;
+		}
+		String sender = parts[1].substring(0, parts[1].indexOf('/'));
+		String name = parts[1].substring(parts[1].indexOf('/') + 1);
+		File part = partFile(sender, name);
+		String total = readTotal(sender, name);
+		if (!part.isFile() || total == null) {
+			return "GET_FILE " + parts[1] + " 0";
+		}
+		return "GET_FILE " + parts[1] + " " + part.length() + " " + total;
+	}
+
+	/**
+	 * These methods find where a partial download is kept. Partial downloads are kept by sender as well as name,
+	 * with a .part.info file holding the size of the whole file, so a leftover from a different file is never resumed.
+	 */
+	private File partFile(String sender, String name) {
+		return new File(new File(new File(downloadFolder, ".parts"), sender), name + ".part");
+	}
+
+	private File infoFile(String sender, String name) {
+		return new File(partFile(sender, name).getPath() + ".info");
+	}
+
+	private String readTotal(String sender, String name) {
+		try {
+			return new String(Files.readAllBytes(infoFile(sender, name).toPath())).trim();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * This method overrides the one from the Runnable interface (as it must)
 	 * In this method, we simply loop infinitely reading in messages from the server as they come in and outputting them to the client.
+	 * File transfer lines are handled here instead of being printed.
 	 */
 	@Override
 	public void run() {
 		try{
 			String message;
 			while(running){
-				message = in.readLine();
+				message = readLine();
+				if (message == null) { // the server closed the connection
+					break;
+				}
+				if (message.startsWith(Protocol.FILE_DATA + " ")) {
+					receiveFile(message);
+					continue;
+				}
+				if (message.startsWith(Protocol.FILE_READY + " ")) {
+					startUpload(message);
+					continue;
+				}
+				if (message.startsWith(Protocol.FILE_ACK + " ")) {
+					acknowledgeUpload(message);
+					continue;
+				}
+				if (message.startsWith(Protocol.FILE_ERROR + " ")) {
+					cancelUpload(message);
+					continue;
+				}
+				if (message.equals(Protocol.REPLY_END)) { // only there for the Replay tool
+					continue;
+				}
 				if (!message.equals("quit") || message != null) { // ensure that no null messages are printed out
 					System.out.println(message);
 				}
@@ -55,4 +155,134 @@ public class ClientThread extends Thread implements Runnable {
 		}
 
 	}
+
+	/**
+	 * This method reads one line of text from the server. It reads byte by byte so it never reads past the end of the line
+	 * into file data that comes after it.
+	 * @return	the line without the line ending, or null at the end of the stream
+	 * @throws 	IOException
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b = in.read();
+		if (b < 0) {
+			return null;
+		}
+		while (b >= 0 && b != '\n') {
+			if (b != '\r') {
+				line.append((char) b);
+			}
+			b = in.read();
+		}
+		return line.toString();
+	}
+
+	/**
+	 * This method starts the upload the server just said was ready. FILE_READY <id> <offset> <name>
+	 */
+	private synchronized void startUpload(String message) {
+		String[] parts = message.split(" ", 4);
+		File file = pendingUploads.remove(parts[3]);
+		if (file == null) {
+			return;
+		}
+		int transferId = Integer.parseInt(parts[1]);
+		long offset = Long.parseLong(parts[2]);
+		if (offset > 0) {
+			System.out.println(">> Resuming " + file.getName() + " from byte " + offset);
+		}
+		FileUploader uploader = new FileUploader(transferId, file, offset, out, socket.getChannel());
+		uploads.put(transferId, uploader);
+		uploader.start();
+	}
+
+	/**
+	 * This method lets an upload send its next chunk. FILE_ACK <id> <offset>
+	 * Once the server has acknowledged the whole file the upload is done, so it's forgotten.
+	 */
+	private synchronized void acknowledgeUpload(String message) {
+		String[] parts = message.split(" ");
+		int transferId = Integer.parseInt(parts[1]);
+		FileUploader uploader = uploads.get(transferId);
+		if (uploader != null) {
+			uploader.acknowledge();
+			if (Long.parseLong(parts[2]) >= uploader.getSize()) {
+				uploads.remove(transferId);
+			}
+		}
+	}
+
+	/**
+	 * This method stops an upload the server couldn't take. FILE_ERROR <id> <reason>
+	 */
+	private synchronized void cancelUpload(String message) {
+		String[] parts = message.split(" ", 3);
+		FileUploader uploader = uploads.remove(Integer.parseInt(parts[1]));
+		if (uploader != null) {
+			uploader.cancel();
+		}
+		System.out.println("\n>> File transfer failed: " + (parts.length > 2 ? parts[2] : "unknown error") + "\n");
+	}
+
+	/**
+	 * This method saves one chunk of a file from the server. FILE_DATA <offset> <length> <total> <sender> <name>
+	 * The chunk is written at its offset into downloads/name.part, which is renamed when the last chunk arrives.
+	 * @throws 	IOException
+	 */
+	private void receiveFile(String header) throws IOException {
+		String[] parts = header.split(" ", 6);
+		long offset = Long.parseLong(parts[1]);
+		int length = Integer.parseInt(parts[2]);
+		long total = Long.parseLong(parts[3]);
+		String sender = parts[4];
+		String name = new File(parts[5]).getName(); // never let the server pick a folder
+		if (length < 0 || length > Protocol.CHUNK_SIZE) {
+			throw new IOException("File chunk of " + length + " bytes is over the limit of " + Protocol.CHUNK_SIZE);
+		}
+		in.readFully(chunkBuffer, 0, length);
+
+		String key = sender + "/" + name;
+		File part = partFile(sender, name);
+		FileChannel channel = downloads.get(key);
+		if (channel == null) {
+			part.getParentFile().mkdirs();
+			if (offset == 0) { // starting over, so throw away anything left from before
+				channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				Files.write(infoFile(sender, name).toPath(), String.valueOf(total).getBytes());
+			}
+			else {
+				channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			}
+			downloads.put(key, channel);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(chunkBuffer, 0, length);
+		long position = offset;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		if (offset + length >= total) {
+			channel.truncate(total);
+			channel.close();
+			downloads.remove(key);
+			File file = new File(downloadFolder, name);
+			file.delete();
+			part.renameTo(file);
+			infoFile(sender, name).delete();
+			System.out.println("\n>> Received " + name + " from " + sender + " (saved to " + file.getPath() + ")\n");
+			acknowledgeDownload(key, total);
+		}
+	}
+
+	/**
+	 * This method tells the server a download is saved, so it can delete its copy. FILE_ACK <sender/name> <size>
+	 */
+	private void acknowledgeDownload(String key, long total) throws IOException {
+		byte[] bytes = p.encode(Protocol.FILE_ACK + " " + key + " " + total);
+		synchronized (out) { // the Client and uploads write to the same stream
+			out.writeChar(Protocol.STRING_TYPE);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.flush();
+		}
+	}
 }
@@ -0,0 +1,210 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * This class stores the state of one file being sent from a user to another user.
+ * If the recipient is online when the transfer starts, each chunk is relayed straight to each of their sessions.
+ * Otherwise the chunks are spooled to a .part file on disk, which is renamed once the whole file has arrived
+ * so the recipient can download it next time they log in.
+ * The number of bytes received so far is the offset a sender resumes from if they have to start over.
+ * Next to each .part file is a .part.info file with the size and modified time of the file being sent,
+ * so a later upload only resumes from the .part if it's really the same file.
+ */
+public class FileTransfer {
+	/**
+	 * The fields of a transfer. The recipient threads are only set when relaying and the spool fields only when spooling.
+	 */
+	private int id;
+	private ServerThread source;
+	private String sender;
+	private String recipient;
+	private String name;
+	private long size;
+	private long modified; // when the sender's copy of the file was last changed, to tell versions of it apart
+	private long received;
+	private ArrayList<ServerThread> recipientThreads; // every session of the recipient when the transfer started
+	private File spoolFile;
+	private FileChannel spoolChannel;
+
+	/**
+	 * Constructor for a transfer that is relayed to a recipient who is online.
+	 */
+	public FileTransfer(int id, ServerThread source, String recipient, String name, long size, long modified, Collection<ServerThread> recipientThreads) {
+		this.id = id;
+		this.source = source;
+		this.sender = source.getUsername();
+		this.recipient = recipient;
+		this.name = name;
+		this.size = size;
+		this.modified = modified;
+		this.recipientThreads = recipientThreads == null ? null : new ArrayList<ServerThread>(recipientThreads);
+	}
+
+	/**
+	 * Constructor for a transfer that is spooled to disk for a recipient who is offline.
+	 * If a .part file is already there from an earlier attempt at the same file (same size and modified time) we pick up where it left off.
+	 * Otherwise it's left over from a different file with the same name, so it's emptied and we start from 0.
+	 * @throws 	IOException if the spool file can't be opened
+	 */
+	public FileTransfer(int id, ServerThread source, String recipient, String name, long size, long modified, File spoolFile) throws IOException {
+		this(id, source, recipient, name, size, modified, (Collection<ServerThread>) null);
+		this.spoolFile = spoolFile;
+		spoolFile.getParentFile().mkdirs();
+		if (Arrays.equals(readInfo(), info())) {
+			this.spoolChannel = FileChannel.open(partFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			this.received = Math.min(spoolChannel.size(), size);
+		}
+		else {
+			this.spoolChannel = FileChannel.open(partFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			writeInfo();
+		}
+	}
+	
+	/**
+	 * This method checks if a file name is one of the files a spooled transfer keeps while it's unfinished,
+	 * so they aren't offered for download.
+	 */
+	public static boolean isPartFile(String name) {
+		return name.endsWith(".part") || name.endsWith(".part.info");
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public ServerThread getSource() {
+		return source;
+	}
+
+	public String getRecipient() {
+		return recipient;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getReceived() {
+		return received;
+	}
+
+	public boolean isSpooled() {
+		return spoolChannel != null;
+	}
+
+	public boolean isComplete() {
+		return received >= size;
+	}
+
+	/**
+	 * This method checks if a new SEND_FILE request is for this same file, so it can be resumed instead of restarted.
+	 */
+	public boolean matches(ServerThread source, String recipient, String name, long size, long modified) {
+		return this.source == source && this.recipient.equals(recipient) && this.name.equals(name) && this.size == size
+				&& this.modified == modified;
+	}
+
+	/**
+	 * This method takes in the next chunk of the file and relays or spools it.
+	 * Chunks have to arrive in order. A chunk we already have (from a resend after resuming) is skipped.
+	 * @param 	offset, where in the file the chunk starts
+	 * @param 	data, the buffer holding the chunk
+	 * @param 	length, the number of bytes of the buffer to use
+	 * @return	the number of bytes received so far, which is what gets acknowledged back to the sender
+	 * @throws 	IOException if the chunk is out of order or none of the recipient's sessions can be reached
+	 */
+	public long write(long offset, byte[] data, int length) throws IOException {
+		if (offset + length <= received && length > 0) { // a duplicate of something we already have
+			return received;
+		}
+		if (offset != received || offset + length > size) {
+			throw new IOException("expected a chunk at offset " + received + " but got one at " + offset);
+		}
+		if (isSpooled()) {
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+			long position = offset;
+			while (buffer.hasRemaining()) {
+				position += spoolChannel.write(buffer, position);
+			}
+		}
+		else {
+			for (int i = recipientThreads.size() - 1; i >= 0; i--) {
+				try {
+					recipientThreads.get(i).sendFileData(sender, name, offset, size, data, length);
+				} catch (IOException e) { // that session went away, but the others can still get the file
+					recipientThreads.remove(i);
+				}
+			}
+			if (recipientThreads.isEmpty()) {
+				throw new IOException(recipient + " went offline");
+			}
+		}
+		received = offset + length;
+		return received;
+	}
+
+	/**
+	 * This method finishes the transfer once all the bytes are in. Spooled files are cut to the right size
+	 * (in case anything was left past the end) and renamed so they show up as ready to download.
+	 * @throws 	IOException
+	 */
+	public void finish() throws IOException {
+		if (isSpooled() && spoolChannel.isOpen()) {
+			spoolChannel.truncate(size);
+		}
+		close();
+		if (isSpooled()) {
+			if (!partFile().renameTo(spoolFile)) {
+				throw new IOException("could not rename " + partFile() + " to " + spoolFile);
+			}
+			infoFile().delete();
+		}
+	}
+
+	/**
+	 * This method closes the spool file if there is one. The .part file is left behind so a later attempt can resume.
+	 */
+	public void close() {
+		if (spoolChannel != null && spoolChannel.isOpen()) {
+			try {
+				spoolChannel.close();
+			} catch (IOException e) {
+				System.out.println("Error closing spool file for " + name + ": " + e);
+			}
+		}
+	}
+
+	private File partFile() {
+		return new File(spoolFile.getPath() + ".part");
+	}
+	
+	private File infoFile() {
+		return new File(spoolFile.getPath() + ".part.info");
+	}
+	
+	/**
+	 * These methods read and write the .part.info file, which is just the size and modified time on one line.
+	 * A missing or unreadable info file never matches, so the .part is started over.
+	 */
+	private byte[] info() {
+		return (size + " " + modified).getBytes();
+	}
+	
+	private byte[] readInfo() {
+		try {
+			return Files.readAllBytes(infoFile().toPath());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	private void writeInfo() throws IOException {
+		Files.write(infoFile().toPath(), info());
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * This class sends a file to the server in chunks on its own thread, so the user can keep chatting during a big upload.
+ * The server acknowledges every chunk once it has been relayed or spooled, and the uploader never gets more than
+ * a few chunks ahead of the acknowledgements. That keeps one transfer from filling up the connection.
+ */
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+
+public class FileUploader extends Thread {
+	/**
+	 * How many chunks can be sent before the server has to acknowledge one.
+	 */
+	public static final int WINDOW = 4;
+
+	private int transferId;
+	private File file;
+	private long size;
+	private long offset;
+	private DataOutputStream out;
+	private WritableByteChannel target;
+	private Protocol p;
+	private Semaphore window;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Constructor to take in the parameters and set the fields appropriately
+	 * @param 	transferId, the id the server gave the transfer
+	 * @param 	file, the file to send
+	 * @param 	offset, where to start sending from (0 unless resuming)
+	 * @param 	out, the stream to the server, which is shared with the Client and locked while writing
+	 * @param 	target, the channel of the same socket for the file data
+	 */
+	public FileUploader(int transferId, File file, long offset, DataOutputStream out, WritableByteChannel target) {
+		this.transferId = transferId;
+		this.file = file;
+		this.size = file.length(); // the size the server was told about in SEND_FILE
+		this.offset = offset;
+		this.out = out;
+		this.target = target;
+		this.p = new Protocol();
+		this.window = new Semaphore(WINDOW);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * This method is called when the server acknowledges a chunk, which frees up room to send another.
+	 */
+	public void acknowledge() {
+		window.release();
+	}
+
+	/**
+	 * This method stops the upload, for example when the server reports an error.
+	 */
+	public void cancel() {
+		cancelled = true;
+		window.release();
+	}
+
+	/**
+	 * This method sends the file from the offset to the end, one chunk at a time.
+	 * The output stream is only locked for a single chunk, so messages the user types go out in between.
+	 */
+	@Override
+	public void run() {
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				long total = channel.size();
+				long position = offset;
+				do { // a do/while so an empty file still gets one (empty) chunk
+					window.acquire();
+					if (cancelled) {
+						break;
+					}
+					int length = (int) Math.min(Protocol.CHUNK_SIZE, total - position);
+					synchronized (out) {
+						p.writeChunk(target, channel, transferId, position, length);
+					}
+					position += length;
+				}
+				while (position < total);
+			} finally {
+				channel.close();
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Error sending " + file + ": " + e);
+		}
+		catch (InterruptedException e) {
+			System.err.println("Upload of " + file + " was interrupted");
+		}
+	}
+}
@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in buckets that double in size (1, 2, 4, 8, ...), so recording one is just a couple of
+ * atomic adds with no locking and no memory allocated, and the whole thing is a fixed 64 counters no matter how many are recorded.
+ * Percentiles are reported as the top of the bucket they land in, so they are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+	private final String unit;
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/*
+	 * Constructor to take in the unit the values are in, which is only used when printing
+	 */
+	public LatencyHistogram(String unit) {
+		this.unit = unit;
+	}
+
+	/**
+	 * This method records one value. Bucket i holds values from 2^(i-1) up to 2^i - 1, and bucket 0 holds 0.
+	 * @param 	value, the latency in this histogram's unit
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * This method finds the bucket that the given fraction of values are at or below.
+	 * @param 	p, the percentile as a fraction, like 0.99
+	 * @return	the top of that bucket
+	 */
+	public long percentile(double p) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < 64; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public String toString() {
+		long n = count.get();
+		if (n == 0) {
+			return "no samples";
+		}
+		return n + " samples, mean " + sum.get() / n + unit + ", p50 " + percentile(0.5) + unit
+				+ ", p99 " + percentile(0.99) + unit + ", max " + max.get() + unit;
+	}
+}
@@ -0,0 +1,120 @@
+import java.util.*;
+
+/**
+ * This class stores the unread messages for one user, oldest first.
+ * Messages are added to the end as they are sent, so the oldest message (the next one to expire or be evicted)
+ * is always at the front and can be found without searching.
+ * Every message has a sequence number that only goes up. Each logged in session remembers the last sequence number it has read,
+ * and the mailbox remembers the last one read by any session, so a message read on one device counts as read for the user
+ * while other devices that were already online can still fetch it once.
+ */
+public class Mailbox {
+	private ArrayDeque<Message> messages;
+	private long readCursor = -1; // the last sequence number read on any device
+	
+	public Mailbox() {
+		this.messages = new ArrayDeque<Message>();
+	}
+	
+	public boolean isEmpty() {
+		return messages.isEmpty();
+	}
+	
+	/**
+	 * This method counts the messages nobody has read yet. Messages read on one device but kept for another don't count
+	 * toward the mailbox limit.
+	 */
+	public int unreadSize() {
+		int unread = 0;
+		Iterator<Message> iterator = messages.descendingIterator();
+		while (iterator.hasNext() && iterator.next().getSequence() > readCursor) {
+			unread++;
+		}
+		return unread;
+	}
+	
+	/**
+	 * This method checks if a message has been read on any device.
+	 */
+	public boolean isRead(Message m) {
+		return m.getSequence() <= readCursor;
+	}
+	
+	public void add(Message m) {
+		messages.addLast(m);
+	}
+	
+	public long getReadCursor() {
+		return readCursor;
+	}
+	
+	public void setReadCursor(long sequence) {
+		readCursor = Math.max(readCursor, sequence);
+	}
+	
+	/**
+	 * This method checks if there are messages after a cursor.
+	 */
+	public boolean hasMessagesAfter(long cursor) {
+		return !messages.isEmpty() && messages.peekLast().getSequence() > cursor;
+	}
+	
+	/**
+	 * This method returns (without removing) the messages after a cursor, in chronological order.
+	 */
+	public ArrayList<Message> getMessagesAfter(long cursor) {
+		ArrayList<Message> after = new ArrayList<Message>();
+		Iterator<Message> iterator = messages.descendingIterator(); // walk back from the newest, since unread ones are at the end
+		while (iterator.hasNext()) {
+			Message m = iterator.next();
+			if (m.getSequence() <= cursor) {
+				break;
+			}
+			after.add(m);
+		}
+		Collections.reverse(after);
+		return after;
+	}
+	
+	/**
+	 * This method removes the messages up to and including a sequence number, once every session has read them.
+	 * @return	the number of messages removed
+	 */
+	public int removeThrough(long sequence) {
+		int removed = 0;
+		while (!messages.isEmpty() && messages.peekFirst().getSequence() <= sequence) {
+			messages.pollFirst();
+			removed++;
+		}
+		return removed;
+	}
+	
+	/**
+	 * This method removes the oldest message, which is what gets dropped when the mailbox is full.
+	 * @return	the removed Message, or null if the mailbox is empty
+	 */
+	public Message removeOldest() {
+		return messages.pollFirst();
+	}
+	
+	/**
+	 * This method removes every message sent at or before the cutoff.
+	 * Because the messages are in order it stops at the first one that is still fresh.
+	 * @param 	cutoff, the time in milliseconds that messages must be newer than
+	 * @return	the ArrayList of expired messages
+	 */
+	public ArrayList<Message> removeExpired(long cutoff) {
+		ArrayList<Message> expired = new ArrayList<Message>();
+		while (!messages.isEmpty() && messages.peekFirst().getSentAt() <= cutoff) {
+			expired.add(messages.pollFirst());
+		}
+		return expired;
+	}
+	
+	/**
+	 * This method returns the messages without removing them, for saving to the file.
+	 */
+	public Collection<Message> getMessages() {
+		return messages;
+	}
+}
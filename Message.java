@@ -4,20 +4,29 @@
  */
 public class Message {
 	/**
-	 * The fields of a message. They include Strings for the sender, recipient, and message.
+	 * The fields of a message. They include Strings for the sender, recipient, and message,
+	 * and the time it was sent (in milliseconds) so old unread messages can expire.
+	 * Unread messages also get a sequence number when they go in a mailbox, which is how each session keeps track of what it has read.
 	 */
 	private String sender;
 	private String recipient;
 	private String message;
+	private long sentAt;
+	private long sequence;
 	private final String delimiter = "-|::|-";
 	
 	/*
 	 * Constructor to take in the parameters and set the fields appropriately
 	 */
 	public Message(String sender, String recipient, String message) {
+		this(sender, recipient, message, System.currentTimeMillis());
+	}
+	
+	public Message(String sender, String recipient, String message, long sentAt) {
 		this.sender = sender;
 		this.recipient = recipient;
 		this.message = message;
+		this.sentAt = sentAt;
 	}
 	
 	public String getSender() {
@@ -32,7 +41,19 @@ public class Message {
 		return message;
 	}
 	
+	public long getSentAt() {
+		return sentAt;
+	}
+	
+	public long getSequence() {
+		return sequence;
+	}
+	
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+	
 	public String toString() {
-		return sender + delimiter + recipient + delimiter + message;
+		return sender + delimiter + recipient + delimiter + message + delimiter + sentAt;
 	}
 }
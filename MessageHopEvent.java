@@ -0,0 +1,18 @@
+import jdk.jfr.*;
+
+/**
+ * This is a Java Flight Recorder event for one hop of a traced message. It is only written when a recording
+ * with this event turned on is running (for example java -XX:StartFlightRecording Server <port>), otherwise it costs nothing.
+ */
+@Name("chat.MessageHop")
+@Label("Message Hop")
+@Category("Chat")
+@Description("Time a sampled message took between two points on its way through the server")
+public class MessageHopEvent extends Event {
+	@Label("Hop")
+	public String hop;
+
+	@Label("Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	public long latency;
+}
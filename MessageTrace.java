@@ -0,0 +1,63 @@
+/**
+ * This class follows one sampled message through the server and records how long each hop took:
+ * from being received (decoded by the Protocol) to being routed (Server.sendMessage),
+ * from being routed to being stored for an offline user (persisted), and from being routed to being written to the recipient.
+ * Each hop goes into a histogram in Metrics and, if a flight recording is running, a MessageHopEvent.
+ * Only some messages get a trace (see Metrics.startTrace), so the rest pay nothing for this.
+ */
+public class MessageTrace {
+	public static final String RECEIVE_TO_ROUTE = "receive to route";
+	public static final String ROUTE_TO_PERSIST = "route to persist";
+	public static final String ROUTE_TO_WRITE = "route to write";
+	/**
+	 * The received time for messages made by the server itself, which were never received.
+	 * System.nanoTime can be negative, so 0 can't be used for this.
+	 */
+	public static final long NOT_RECEIVED = Long.MIN_VALUE;
+
+	private Metrics metrics;
+	private long received;
+	private long routed;
+
+	/*
+	 * Constructor to take in the metrics to record into and the time (System.nanoTime) the message was received, or NOT_RECEIVED
+	 */
+	public MessageTrace(Metrics metrics, long received) {
+		this.metrics = metrics;
+		this.received = received;
+	}
+
+	/**
+	 * This method stamps the message as routed. Called when Server.sendMessage starts working on it.
+	 */
+	public void routed() {
+		routed = System.nanoTime();
+		if (received != NOT_RECEIVED) {
+			record(RECEIVE_TO_ROUTE, routed - received);
+		}
+	}
+
+	/**
+	 * This method stamps the message as stored in the offline mailbox and the unread file.
+	 */
+	public void persisted() {
+		record(ROUTE_TO_PERSIST, System.nanoTime() - routed);
+	}
+
+	/**
+	 * This method stamps the message as written to a recipient's socket. With more than one session it's called once for each.
+	 */
+	public void written() {
+		record(ROUTE_TO_WRITE, System.nanoTime() - routed);
+	}
+
+	private void record(String hop, long nanos) {
+		metrics.getHistogram(hop).record(nanos / 1000);
+		MessageHopEvent event = new MessageHopEvent();
+		if (event.isEnabled()) {
+			event.hop = hop;
+			event.latency = nanos;
+			event.commit();
+		}
+	}
+}
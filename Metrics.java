@@ -0,0 +1,94 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class stores counters about what the server is doing so we can see how it's behaving while it runs.
+ * The counters are atomic because they are updated from every ServerThread and the background expiry at once.
+ * It also keeps latency histograms for a sample of messages (see MessageTrace), one for each hop a message takes
+ * plus one for how long offline messages wait before they're read. One in every traceSampleRate messages is traced,
+ * set with -Dchat.traceSampleRate=N (default 100, 1 traces everything, 0 turns tracing off).
+ * Users can see them with the STATS command.
+ */
+public class Metrics {
+	/**
+	 * Unread messages that were dropped: expired because they were too old, evicted to make room in a full mailbox,
+	 * or rejected because the mailbox was full.
+	 */
+	private final AtomicLong messagesExpired = new AtomicLong();
+	private final AtomicLong messagesEvicted = new AtomicLong();
+	private final AtomicLong messagesRejected = new AtomicLong();
+	
+	public static final String OFFLINE_DWELL = "offline dwell";
+	private final LinkedHashMap<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+	private volatile int traceSampleRate = Integer.getInteger("chat.traceSampleRate", 100);
+	
+	/*
+	 * Constructor that sets up the histograms. The map never changes after this, so it's safe to read from any thread.
+	 */
+	public Metrics() {
+		histograms.put(MessageTrace.RECEIVE_TO_ROUTE, new LatencyHistogram("us"));
+		histograms.put(MessageTrace.ROUTE_TO_PERSIST, new LatencyHistogram("us"));
+		histograms.put(MessageTrace.ROUTE_TO_WRITE, new LatencyHistogram("us"));
+		histograms.put(OFFLINE_DWELL, new LatencyHistogram("ms"));
+	}
+	
+	public void messageExpired() {
+		messagesExpired.incrementAndGet();
+	}
+	
+	public void messageEvicted() {
+		messagesEvicted.incrementAndGet();
+	}
+	
+	public void messageRejected() {
+		messagesRejected.incrementAndGet();
+	}
+	
+	public long getMessagesExpired() {
+		return messagesExpired.get();
+	}
+	
+	public long getMessagesEvicted() {
+		return messagesEvicted.get();
+	}
+	
+	public long getMessagesRejected() {
+		return messagesRejected.get();
+	}
+	
+	public LatencyHistogram getHistogram(String name) {
+		return histograms.get(name);
+	}
+	
+	public void setTraceSampleRate(int rate) {
+		this.traceSampleRate = rate;
+	}
+	
+	/**
+	 * This method decides if the next message should be traced. It uses a thread local random number instead of
+	 * a shared counter so threads don't fight over it.
+	 */
+	public boolean shouldSample() {
+		int rate = traceSampleRate;
+		return rate > 0 && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0);
+	}
+	
+	/**
+	 * This method starts a trace for a message if it's one of the sampled ones.
+	 * @param 	received, when the message was received (System.nanoTime), or MessageTrace.NOT_RECEIVED if the server made it
+	 * @return	the MessageTrace, or null if this message isn't traced
+	 */
+	public MessageTrace startTrace(long received) {
+		return shouldSample() ? new MessageTrace(this, received) : null;
+	}
+	
+	public String toString() {
+		String s = "messages expired: " + messagesExpired.get() + ", evicted: " + messagesEvicted.get() + ", rejected: " + messagesRejected.get();
+		for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+			s += "\n>> " + histogram.getKey() + ": " + histogram.getValue();
+		}
+		return s;
+	}
+}
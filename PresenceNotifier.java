@@ -0,0 +1,207 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class keeps track of who is watching whom and tells watchers when those users come online or go offline.
+ * It stores a reverse index from each user to the usernames watching them, so a login only looks at that user's watchers.
+ * Changes are not sent right away. They are collected for a short window and then sent in one batch,
+ * so each watcher gets at most one presence line per window no matter how many users reconnect at once,
+ * and a user who drops and comes back inside the window doesn't cause any notification at all.
+ */
+public class PresenceNotifier {
+	/**
+	 * How long in milliseconds to collect changes before sending them.
+	 */
+	public static final long WINDOW = 250;
+
+	/**
+	 * The fields of the notifier. watchers is the reverse index (user to watchers) and watching is the forward one
+	 * (watcher to users) so a watcher's subscriptions can be cleaned up without searching everything.
+	 * lastNotified is the state watchers were last told about, which is how flapping gets filtered out.
+	 * toldOnWatch is for watchers who started watching while a change was waiting. They were told the state in the WATCH
+	 * reply, so the batch shouldn't tell them the same thing again.
+	 */
+	private Server server;
+	private HashMap<String, HashSet<String>> watchers;
+	private HashMap<String, HashSet<String>> watching;
+	private HashMap<String, Boolean> lastNotified;
+	private HashMap<String, HashMap<String, Boolean>> toldOnWatch;
+	private LinkedHashSet<String> changed;
+	private ScheduledExecutorService timer;
+	private boolean flushScheduled;
+
+	/*
+	 * Constructor to take in the server, which is used to look up who is online when a batch is sent
+	 */
+	public PresenceNotifier(Server server) {
+		this.server = server;
+		this.watchers = new HashMap<String, HashSet<String>>();
+		this.watching = new HashMap<String, HashSet<String>>();
+		this.lastNotified = new HashMap<String, Boolean>();
+		this.toldOnWatch = new HashMap<String, HashMap<String, Boolean>>();
+		this.changed = new LinkedHashSet<String>();
+	}
+
+	/**
+	 * This method subscribes a watcher to a user's presence.
+	 * @param 	watcher, the username that wants to be notified
+	 * @param 	user, the username to watch
+	 * @return	true if the user is online right now, so the watcher can be told the current state
+	 */
+	public synchronized boolean watch(String watcher, String user) {
+		watchers.computeIfAbsent(user, k -> new HashSet<String>()).add(watcher);
+		watching.computeIfAbsent(watcher, k -> new HashSet<String>()).add(user);
+		boolean online = server.isOnline(user);
+		if (!changed.contains(user)) { // a change waiting to be sent will update this itself
+			lastNotified.put(user, online);
+		}
+		else {
+			toldOnWatch.computeIfAbsent(user, k -> new HashMap<String, Boolean>()).put(watcher, online);
+		}
+		return online;
+	}
+
+	/**
+	 * This method unsubscribes a watcher from a user's presence.
+	 * @return	true if the watcher was watching the user
+	 */
+	public synchronized boolean unwatch(String watcher, String user) {
+		HashSet<String> users = watching.get(watcher);
+		if (users == null || !users.remove(user)) {
+			return false;
+		}
+		if (users.isEmpty()) {
+			watching.remove(watcher);
+		}
+		removeWatcher(user, watcher);
+		return true;
+	}
+
+	/**
+	 * This method returns the users a watcher is subscribed to.
+	 */
+	public synchronized ArrayList<String> getWatching(String watcher) {
+		HashSet<String> users = watching.get(watcher);
+		return users == null ? new ArrayList<String>() : new ArrayList<String>(users);
+	}
+
+	/**
+	 * This method removes a user completely, both as a watcher and as someone being watched. It's used when an account is deleted.
+	 * Watchers who were last told the user is online are told they went offline, since no batch will come for them after this.
+	 */
+	public void forget(String username) {
+		ArrayList<String> toTell = new ArrayList<String>();
+		synchronized (this) {
+			HashSet<String> users = watching.remove(username);
+			if (users != null) {
+				for (String user : users) {
+					removeWatcher(user, username);
+				}
+			}
+			HashSet<String> userWatchers = watchers.remove(username);
+			if (userWatchers != null) {
+				HashMap<String, Boolean> told = toldOnWatch.get(username);
+				for (String watcher : userWatchers) {
+					HashSet<String> watched = watching.get(watcher);
+					if (watched != null) {
+						watched.remove(username);
+					}
+					Boolean toldState = told == null ? null : told.get(watcher);
+					if (toldState != null ? toldState : lastNotified.get(username) == Boolean.TRUE) {
+						toTell.add(watcher);
+					}
+				}
+			}
+			lastNotified.remove(username);
+			toldOnWatch.remove(username);
+			changed.remove(username);
+		}
+		byte[] line = ServerThread.encodeLine("\n>> Presence: " + username + " went offline\n");
+		for (String watcher : toTell) {
+			for (ServerThread thread : server.getSessions(watcher)) {
+				thread.sendEncoded(line);
+			}
+		}
+	}
+
+	/**
+	 * This method is called whenever a user logs in or out. Users nobody watches are ignored right away.
+	 * Otherwise the user is marked as changed and a batch is scheduled if one isn't already coming.
+	 * @param 	user, the username whose presence might have changed
+	 */
+	public synchronized void changed(String user) {
+		if (!watchers.containsKey(user)) {
+			return;
+		}
+		changed.add(user);
+		if (!flushScheduled) {
+			flushScheduled = true;
+			if (timer == null) {
+				timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "presence-notifier");
+						thread.setDaemon(true); // don't keep the server running just for this
+						return thread;
+					}
+				});
+			}
+			timer.schedule(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, WINDOW, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * This method sends one batch of changes. It looks at each changed user's presence now (not at each event),
+	 * skips anyone who ended up back where watchers last saw them, and groups the rest by watcher
+	 * so every watcher gets a single line. The lines are sent after letting go of the lock so a slow client can't hold up logins.
+	 */
+	public void flush() {
+		HashMap<String, ArrayList<String>> batches = new HashMap<String, ArrayList<String>>();
+		synchronized (this) {
+			flushScheduled = false;
+			for (String user : changed) {
+				HashSet<String> userWatchers = watchers.get(user);
+				HashMap<String, Boolean> told = toldOnWatch.remove(user);
+				if (userWatchers == null) { // everyone stopped watching while the change was waiting
+					continue;
+				}
+				boolean online = server.isOnline(user);
+				Boolean last = lastNotified.put(user, online);
+				boolean flapped = last != null && last == online; // it flapped back within the window, so nothing to tell
+				for (String watcher : userWatchers) {
+					Boolean toldState = told == null ? null : told.get(watcher);
+					if (toldState != null ? toldState == online : flapped) { // unless they were told something else when they started watching
+						continue;
+					}
+					batches.computeIfAbsent(watcher, k -> new ArrayList<String>()).add(user + (online ? " is online" : " went offline"));
+				}
+			}
+			changed.clear();
+		}
+		for (Map.Entry<String, ArrayList<String>> batch : batches.entrySet()) {
+			byte[] line = ServerThread.encodeLine("\n>> Presence: " + String.join(", ", batch.getValue()) + "\n");
+			for (ServerThread thread : server.getSessions(batch.getKey())) {
+				thread.sendEncoded(line);
+			}
+		}
+	}
+
+	private void removeWatcher(String user, String watcher) {
+		HashSet<String> userWatchers = watchers.get(user);
+		if (userWatchers != null) {
+			userWatchers.remove(watcher);
+			HashMap<String, Boolean> told = toldOnWatch.get(user);
+			if (told != null) {
+				told.remove(watcher);
+			}
+			if (userWatchers.isEmpty()) {
+				watchers.remove(user);
+				lastNotified.remove(user);
+				toldOnWatch.remove(user);
+			}
+		}
+	}
+}
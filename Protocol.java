@@ -3,16 +3,103 @@
  * The basis of the wire protocol is to encode the Strings as bytes then decode them back to Strings
  * The encoding includes one byte for the data type (always a string), 4 bytes for an integer to store the length of the data,
  * and N bytes to hold the value of the data
+ * File transfers add a second data type, a binary chunk, which carries a transfer id and file offset after the length
+ * so that a file can be streamed in small pieces in between the regular string messages.
  */
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 
 public class Protocol {
 	
+	/**
+	 * The data types we currently support on the wire and the largest chunk of a file sent in a single frame.
+	 * Keeping chunks small means a big file never holds the connection for long, so chat messages still get through.
+	 */
+	public static final char STRING_TYPE = 's';
+	public static final char CHUNK_TYPE = 'f';
+	public static final int CHUNK_SIZE = 16 * 1024;
+	public static final int CHUNK_HEADER = 18; // 2 for the type, 4 for the length, 4 for the transfer id and 8 for the offset
+	
+	/**
+	 * The control lines the server sends back to the client during a file transfer.
+	 * FILE_READY <id> <offset> <name> tells the client where to start (or resume) an upload.
+	 * FILE_ACK <id> <offset> confirms everything before offset has been relayed or spooled.
+	 * The client also sends FILE_ACK <sender/name> <size> once it has saved a whole download, so the server can delete its copy.
+	 * FILE_ERROR <id> <reason> cancels an upload.
+	 * FILE_DATA <offset> <length> <total> <sender> <name> is followed by exactly length raw bytes of the file.
+	 * REPLY_END is only sent by a server started with -Dchat.replyMarkers=true. It comes after everything the server
+	 * sent in answer to one frame, so the Replay tool can tell where each reply ends.
+	 */
+	public static final String FILE_READY = "FILE_READY";
+	public static final String FILE_ACK = "FILE_ACK";
+	public static final String FILE_ERROR = "FILE_ERROR";
+	public static final String FILE_DATA = "FILE_DATA";
+	public static final String REPLY_END = "REPLY_END";
+	
+	/**
+	 * Anything that wants to receive file chunks implements this interface.
+	 * The data array is reused for the next chunk, so it has to be consumed before the method returns.
+	 */
+	public interface ChunkHandler {
+		void handleChunk(int transferId, long offset, byte[] data, int length) throws IOException;
+	}
+	
 	/**
 	 * We hard coded in the charset for encoding so that local defaults don't mess things up.
 	 */
 	private final Charset charset = Charset.forName("ASCII");
+	private ChunkHandler chunkHandler;
+	private byte[] chunkBuffer;
+	private ByteBuffer chunkHeader; // reused for every chunk this Protocol writes
+	private TrafficCapture capture; // only set when the server is recording traffic
+	private int connectionId;
+	private long connectionStart;
+	private long lastReceived; // when the last string started arriving, for tracing message latency
+	
+	/**
+	 * This method sets who gets the file chunks that show up while decoding.
+	 * Without a handler chunks are read and thrown away so the stream stays in sync.
+	 * @param 	handler, the ChunkHandler to pass chunks to
+	 */
+	public void setChunkHandler(ChunkHandler handler) {
+		this.chunkHandler = handler;
+	}
+	
+	/**
+	 * This method turns on recording of every frame decoded from now on. See TrafficCapture for the file format.
+	 * @param 	capture, the capture file to record into
+	 * @param 	connectionId, the id of this connection in the capture
+	 */
+	public void setCapture(TrafficCapture capture, int connectionId) {
+		this.capture = capture;
+		this.connectionId = connectionId;
+		this.connectionStart = capture.opened(connectionId);
+	}
+	
+	/**
+	 * This method records that the connection is closed, if traffic is being recorded.
+	 */
+	public void endCapture() {
+		if (capture != null) {
+			capture.closed(connectionId, captureTime());
+			capture = null;
+		}
+	}
+	
+	/**
+	 * This method returns when the string most recently decoded started arriving, in System.nanoTime.
+	 * It's the first timestamp on a traced message.
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	
+	private long captureTime() {
+		return (System.nanoTime() - connectionStart) / 1000;
+	}
 	
 	/**
 	 * This method encodes a string based on the byte encoding we're using for the protocol
@@ -25,14 +112,48 @@ public class Protocol {
 		return dataInBytes;
 	}
 	
+	/**
+	 * This method writes one chunk of a file to the wire.
+	 * The 18 byte header (type, length, transfer id, offset) is put together in a buffer and written to the channel in one go,
+	 * then the file bytes go straight from the FileChannel to the socket with transferTo so they are never copied onto the heap.
+	 * The caller must hold whatever lock guards the output so the header and the data stay together.
+	 * @param 	target, the channel of the socket to write to
+	 * @param 	file, the file being sent
+	 * @param 	transferId, the id the server gave this transfer
+	 * @param 	offset, where in the file this chunk starts
+	 * @param 	length, how many bytes to send (at most CHUNK_SIZE)
+	 * @throws 	IOException
+	 */
+	public void writeChunk(WritableByteChannel target, FileChannel file, int transferId, long offset, int length) throws IOException {
+		if (chunkHeader == null) {
+			chunkHeader = ByteBuffer.allocate(CHUNK_HEADER);
+		}
+		chunkHeader.clear();
+		chunkHeader.putChar(CHUNK_TYPE).putInt(length).putInt(transferId).putLong(offset);
+		chunkHeader.flip();
+		while (chunkHeader.hasRemaining()) {
+			target.write(chunkHeader);
+		}
+		long sent = 0;
+		while (sent < length) { // transferTo can send less than we ask for, so keep going until the chunk is done
+			sent += file.transferTo(offset + sent, length - sent, target);
+		}
+	}
+	
 	/** 
 	 * This methods decodes a DataInputStream storing bytes back into a string based on the encoding
+	 * Any file chunks that arrive first are passed to the chunk handler before the string is read.
 	 * @param 	stream, the DataInputStream received from the client
 	 * @return	str, the String that the client originally typed
 	 * @throws 	IOException 
 	 */
 	public String decode(DataInputStream stream) throws IOException {
 		char dataType = stream.readChar();
+		while (dataType == CHUNK_TYPE) { // chunks can show up in between any two strings
+			readChunk(stream);
+			dataType = stream.readChar();
+		}
+		lastReceived = System.nanoTime();
 		int length = stream.readInt();
 		String str = "";
 		
@@ -63,7 +184,36 @@ public class Protocol {
 		    }
 		    str = dataString.toString(); // convert to a String
 		}
+		if (capture != null) {
+			byte[] body = str.getBytes(charset);
+			capture.record(connectionId, captureTime(), dataType, body, 0, body.length);
+		}
 		return str;
 	}
+	
+	/**
+	 * This method reads a single file chunk off the stream and hands it to the chunk handler.
+	 * The buffer is only ever CHUNK_SIZE bytes and is reused, so even a huge file doesn't pile up on the heap.
+	 * @param 	stream, the DataInputStream received from the client
+	 * @throws 	IOException if the chunk is bigger than we allow
+	 */
+	private void readChunk(DataInputStream stream) throws IOException {
+		int length = stream.readInt();
+		int transferId = stream.readInt();
+		long offset = stream.readLong();
+		if (length < 0 || length > CHUNK_SIZE) {
+			throw new IOException("File chunk of " + length + " bytes is over the limit of " + CHUNK_SIZE);
+		}
+		if (chunkBuffer == null) {
+			chunkBuffer = new byte[CHUNK_SIZE];
+		}
+		stream.readFully(chunkBuffer, 0, length);
+		if (capture != null) {
+			capture.recordChunk(connectionId, captureTime(), transferId, offset, chunkBuffer, length);
+		}
+		if (chunkHandler != null) {
+			chunkHandler.handleChunk(transferId, offset, chunkBuffer, length);
+		}
+	}
 
 }
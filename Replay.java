@@ -0,0 +1,346 @@
+/**
+ * This class replays a capture file recorded by the server (see TrafficCapture) against a running server,
+ * so we can see how a new build handles real traffic before releasing it.
+ *
+ * Usage: java Replay <capture file> <host> <port> [speed] [-out report] [-baseline report] [-maxRegression percent]
+ *
+ * The speed is 1 to replay in real time, a number like 10 to go that many times faster, or max to send as fast as possible.
+ * Each recorded connection gets its own socket and thread. Frames on a connection are always sent in the order they were
+ * recorded, and connections are opened at their recorded times (scaled by the speed).
+ * The server has to be started with -Dchat.replyMarkers=true so it ends every reply with a REPLY_END line.
+ * Each frame's latency is measured from sending it to its REPLY_END. The server answers frames in order, so the
+ * send times wait in a queue and each REPLY_END matches the oldest one. Anything else the server sends (the welcome
+ * banner, messages and presence lines from other users, the rest of a multi-line reply) is ignored.
+ * File chunks carry transfer ids handed out by the server that recorded them. The new server hands out its own in
+ * FILE_READY lines, in the same order as the SEND_FILEs, so each recorded id is mapped to the next new id the first time
+ * one of its chunks comes up and the chunk's id is rewritten before it's sent. A chunk whose transfer never got a
+ * FILE_READY (the SEND_FILE failed on the new server) is skipped and counted.
+ * At the end it prints the throughput and latency. With -out the numbers are saved, and with -baseline they are compared
+ * to an earlier run. With -maxRegression the program exits with status 2 if throughput dropped or p99 latency grew
+ * by more than that percent, so it can be used to gate a release.
+ * Replaying CREATE and DELETE changes the server's data, so replay against a server started on a scratch data folder.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Replay {
+
+	private String host;
+	private int port;
+	private double speed; // 0 means as fast as possible
+	private long start;
+	private ArrayList<Long> latencies = new ArrayList<Long>(); // in nanoseconds, from every connection
+	private long framesSent;
+	private long chunksSkipped;
+
+	public Replay(String host, int port, double speed) {
+		this.host = host;
+		this.port = port;
+		this.speed = speed;
+	}
+
+	/**
+	 * This class replays the frames of one connection on its own thread, with a second thread reading what the server sends back.
+	 */
+	private class Connection extends Thread {
+		private ArrayList<TrafficCapture.Frame> frames = new ArrayList<TrafficCapture.Frame>();
+		private long openedAt; // microseconds since the capture started
+		private ArrayDeque<Long> pending = new ArrayDeque<Long>(); // when each frame with no REPLY_END yet was sent, oldest first
+		private volatile long lastReply; // when the last REPLY_END came in
+		private LinkedBlockingQueue<Integer> readyIds = new LinkedBlockingQueue<Integer>(); // new transfer ids not yet matched to recorded ones
+		private Set<Integer> seenIds = ConcurrentHashMap.newKeySet(); // so a resumed transfer's FILE_READY isn't taken for a new one
+		private HashMap<Integer, Integer> transferIds = new HashMap<Integer, Integer>(); // recorded id to new id, or to null if there wasn't one
+
+		public void run() {
+			try {
+				sleepUntil(start, openedAt);
+				Socket socket = new Socket(host, port);
+				long connectionStart = System.nanoTime();
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				Thread reader = new Thread() {
+					public void run() {
+						readReplies(in);
+					}
+				};
+				reader.start();
+				int sent = 0;
+				int chunks = 0;
+				for (TrafficCapture.Frame frame : frames) {
+					if (frame.type == TrafficCapture.CLOSE) {
+						break;
+					}
+					byte[] body = frame.body;
+					int length = body.length;
+					if (frame.type == Protocol.CHUNK_TYPE) {
+						out.flush(); // the SEND_FILE has to reach the server before we can wait for its FILE_READY
+						body = remapChunk(body);
+						if (body == null) {
+							chunks++;
+							continue;
+						}
+						length = body.length - TrafficCapture.CHUNK_HEADER;
+					}
+					sleepUntil(connectionStart, frame.micros);
+					synchronized (pending) { // queued before it's sent so the reply can't beat it
+						pending.addLast(System.nanoTime());
+					}
+					out.writeChar(frame.type);
+					out.writeInt(length);
+					out.write(body);
+					out.flush();
+					sent++;
+				}
+				waitForReplies(reader);
+				socket.close();
+				reader.join();
+				synchronized (Replay.this) {
+					framesSent += sent;
+					chunksSkipped += chunks;
+				}
+			} catch (IOException | InterruptedException e) {
+				System.err.println("Error replaying a connection: " + e);
+			}
+		}
+
+		/**
+		 * This method returns a copy of a recorded chunk body with the transfer id (its first 4 bytes) changed to the new server's.
+		 * The first chunk of a transfer waits up to 5 seconds for the FILE_READY that gives the new id.
+		 * @return	the new body, or null if the new server never started this transfer
+		 */
+		private byte[] remapChunk(byte[] body) throws IOException, InterruptedException {
+			int recorded = new DataInputStream(new ByteArrayInputStream(body)).readInt();
+			if (transferIds.containsKey(recorded) && transferIds.get(recorded) == null) { // already gave up on this one
+				return null;
+			}
+			Integer id = transferIds.get(recorded);
+			if (id == null) {
+				id = readyIds.poll(5, TimeUnit.SECONDS);
+				transferIds.put(recorded, id);
+				if (id == null) {
+					return null;
+				}
+			}
+			byte[] remapped = body.clone();
+			remapped[0] = (byte) (id >>> 24);
+			remapped[1] = (byte) (id >>> 16);
+			remapped[2] = (byte) (id >>> 8);
+			remapped[3] = (byte) (int) id;
+			return remapped;
+		}
+
+		/**
+		 * This method waits for the replies to the frames that were sent. It stops when they have all come back,
+		 * when the server closes the connection (after a QUIT or DELETE, which never get a REPLY_END),
+		 * or when a second goes by without any reply.
+		 */
+		private void waitForReplies(Thread reader) throws InterruptedException {
+			lastReply = System.nanoTime();
+			while (reader.isAlive() && System.nanoTime() - lastReply < 1000000000L) {
+				synchronized (pending) {
+					if (pending.isEmpty()) {
+						return;
+					}
+				}
+				Thread.sleep(5);
+			}
+		}
+
+		/**
+		 * This method reads lines from the server until the socket closes. Each REPLY_END is the end of the reply
+		 * to the oldest frame still waiting. New transfer ids from FILE_READY lines are queued for remapChunk.
+		 * File data after a FILE_DATA line is skipped so it isn't mistaken for lines.
+		 */
+		private void readReplies(DataInputStream in) {
+			try {
+				StringBuilder line = new StringBuilder();
+				int b;
+				while ((b = in.read()) >= 0) {
+					if (b != '\n') {
+						line.append((char) b);
+						continue;
+					}
+					String text = line.toString().trim();
+					line.setLength(0);
+					if (text.equals(Protocol.REPLY_END)) {
+						long now = System.nanoTime();
+						Long sentAt;
+						synchronized (pending) {
+							sentAt = pending.pollFirst();
+						}
+						if (sentAt != null) {
+							lastReply = now;
+							synchronized (Replay.this) {
+								latencies.add(now - sentAt);
+							}
+						}
+					}
+					else if (text.startsWith(Protocol.FILE_READY + " ")) {
+						int id = Integer.parseInt(text.split(" ")[1]);
+						if (seenIds.add(id)) {
+							readyIds.add(id);
+						}
+					}
+					else if (text.startsWith(Protocol.FILE_DATA + " ")) {
+						in.skipBytes(Integer.parseInt(text.split(" ")[2]));
+					}
+				}
+			} catch (IOException e) {
+				// the socket was closed, which is how this normally ends
+			}
+		}
+	}
+
+	/**
+	 * This method sleeps until a recorded time, scaled by the speed. At max speed it doesn't sleep at all.
+	 */
+	private void sleepUntil(long base, long micros) throws InterruptedException {
+		if (speed <= 0) {
+			return;
+		}
+		long wait = base + (long) (micros * 1000 / speed) - System.nanoTime();
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		}
+	}
+
+	/**
+	 * This method replays all of the frames and returns the results.
+	 * @param 	frames, the records from the capture file
+	 * @return	the report, with throughput in frames per second and latencies in milliseconds.
+	 * 			If no replies came back at all the server probably wasn't started with -Dchat.replyMarkers=true, so that's printed as a warning.
+	 * @throws 	InterruptedException
+	 */
+	public Properties run(ArrayList<TrafficCapture.Frame> frames) throws InterruptedException {
+		HashMap<Integer, Connection> connections = new LinkedHashMap<Integer, Connection>();
+		for (TrafficCapture.Frame frame : frames) {
+			Connection connection = connections.get(frame.connectionId);
+			if (connection == null) {
+				connection = new Connection();
+				connections.put(frame.connectionId, connection);
+			}
+			if (frame.type == TrafficCapture.OPEN) {
+				connection.openedAt = frame.micros;
+			}
+			else {
+				connection.frames.add(frame);
+			}
+		}
+		start = System.nanoTime();
+		for (Connection connection : connections.values()) {
+			connection.start();
+		}
+		for (Connection connection : connections.values()) {
+			connection.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (framesSent > 0 && latencies.isEmpty()) {
+			System.err.println("No replies were timed. Was the server started with -Dchat.replyMarkers=true?");
+		}
+
+		Collections.sort(latencies);
+		Properties report = new Properties();
+		report.setProperty("connections", String.valueOf(connections.size()));
+		report.setProperty("frames", String.valueOf(framesSent));
+		report.setProperty("replies", String.valueOf(latencies.size()));
+		report.setProperty("chunks.skipped", String.valueOf(chunksSkipped));
+		report.setProperty("seconds", String.format("%.3f", seconds));
+		report.setProperty("throughput", String.format("%.1f", framesSent / seconds));
+		report.setProperty("latency.p50", String.format("%.3f", percentile(0.50)));
+		report.setProperty("latency.p95", String.format("%.3f", percentile(0.95)));
+		report.setProperty("latency.p99", String.format("%.3f", percentile(0.99)));
+		report.setProperty("latency.max", String.format("%.3f", percentile(1.0)));
+		return report;
+	}
+
+	private double percentile(double p) {
+		if (latencies.isEmpty()) {
+			return 0;
+		}
+		int index = (int) Math.ceil(p * latencies.size()) - 1;
+		return latencies.get(Math.max(0, index)) / 1e6;
+	}
+
+	/**
+	 * This method prints the report, with the change from the baseline next to each number if there is one.
+	 */
+	private static void print(Properties report, Properties baseline) {
+		String[] keys = {"connections", "frames", "replies", "chunks.skipped", "seconds", "throughput", "latency.p50", "latency.p95", "latency.p99", "latency.max"};
+		for (String key : keys) {
+			String line = key + ": " + report.getProperty(key);
+			if (baseline != null && baseline.getProperty(key) != null) {
+				line += " (baseline " + baseline.getProperty(key) + ", " + String.format("%+.1f%%", change(report, baseline, key)) + ")";
+			}
+			System.out.println(line);
+		}
+	}
+
+	private static double change(Properties report, Properties baseline, String key) {
+		double before = Double.parseDouble(baseline.getProperty(key));
+		double after = Double.parseDouble(report.getProperty(key));
+		return before == 0 ? 0 : (after - before) / before * 100;
+	}
+
+	/**
+	 * The main method parses the arguments, runs the replay, and handles the report options described at the top.
+	 * @param 	args
+	 */
+	public static void main(String[] args) {
+		ArrayList<String> positional = new ArrayList<String>();
+		String outFile = null;
+		String baselineFile = null;
+		double maxRegression = -1;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-out")) {
+					outFile = args[++i];
+				}
+				else if (args[i].equals("-baseline")) {
+					baselineFile = args[++i];
+				}
+				else if (args[i].equals("-maxRegression")) {
+					maxRegression = Double.parseDouble(args[++i]);
+				}
+				else {
+					positional.add(args[i]);
+				}
+			}
+			if (positional.size() < 3 || positional.size() > 4) {
+				throw new IllegalArgumentException();
+			}
+			String speedArg = positional.size() > 3 ? positional.get(3) : "1";
+			double speed = speedArg.equalsIgnoreCase("max") ? 0 : Double.parseDouble(speedArg);
+
+			Replay replay = new Replay(positional.get(1), Integer.parseInt(positional.get(2)), speed);
+			Properties report = replay.run(TrafficCapture.read(positional.get(0)));
+
+			Properties baseline = null;
+			if (baselineFile != null) {
+				baseline = new Properties();
+				FileInputStream in = new FileInputStream(baselineFile);
+				baseline.load(in);
+				in.close();
+			}
+			print(report, baseline);
+			if (outFile != null) {
+				FileOutputStream out = new FileOutputStream(outFile);
+				report.store(out, "Replay of " + positional.get(0) + " at speed " + speedArg);
+				out.close();
+			}
+			if (baseline != null && maxRegression >= 0
+					&& (-change(report, baseline, "throughput") > maxRegression || change(report, baseline, "latency.p99") > maxRegression)) {
+				System.err.println("Regression of more than " + maxRegression + "% against " + baselineFile);
+				System.exit(2);
+			}
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.err.println("Usage: java Replay <capture file> <host> <port> [1|N|max] [-out report] [-baseline report] [-maxRegression percent]");
+			System.exit(1);
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Error replaying: " + e);
+			System.exit(1);
+		}
+	}
+}
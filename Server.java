@@ -1,6 +1,9 @@
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
 
 /** 
  * The Server class stores all of the state and functionality of the server.
@@ -13,15 +16,46 @@ public class Server {
 	/** 
 	 * The fields for the ChatServer class
 	 */
-	private int port;
-	private ArrayList<ServerThread> activeThreads;
+	private volatile int port; // the real port once started, even if 0 was asked for
+	private ConcurrentHashMap<String, Set<ServerThread>> sessions; // every logged in connection, by username
 	private ArrayList<String> usernames;
-	private ArrayList<Message> unreadMessages;
+	private HashMap<String, Mailbox> mailboxes; // unread messages by recipient, also the lock for the message file
+	private long nextSequence; // numbers the unread messages across all mailboxes, so a sequence number is never reused
 	private int clientId;
-	private boolean running;
-	private final String usernameFile = "usernames.txt";
-	private final String messageFile = "unreadMessages.txt"; // assume this is tab separated?
+	private volatile boolean running;
+	private ServerSocketChannel serverSocket;
+	private final String usernameFile;
+	private final String messageFile; // assume this is tab separated?
 	private final String delimiter = "-|::|-";
+	private final String fileDirectory; // spooled files live in files/<recipient>/<sender>/<name>
+	private HashMap<Integer, FileTransfer> transfers;
+	private int nextTransferId;
+	private PresenceNotifier presence;
+	private Metrics metrics;
+	
+	/**
+	 * What happened to a message: written to at least one of the recipient's sessions, stored as unread,
+	 * or rejected because the recipient's mailbox is full and the policy is reject.
+	 */
+	public enum Delivery { DELIVERED, STORED, REJECTED }
+	
+	/**
+	 * The name the server's own notices are sent from. Nobody can create an account with it, so a notice can't be faked.
+	 */
+	public static final String SERVER_NAME = "server";
+	
+	/**
+	 * The limits on unread messages. Messages older than the TTL are dropped, and a mailbox never holds more than mailboxSize messages nobody has read.
+	 * When a mailbox is full the oldest message is dropped to make room, unless the policy is reject, in which case the new one is.
+	 * They can be set when starting the server with -Dchat.messageTtlSeconds=N -Dchat.mailboxSize=N -Dchat.mailboxPolicy=oldest|reject
+	 */
+	private long messageTtl = Long.getLong("chat.messageTtlSeconds", 30L * 24 * 60 * 60) * 1000;
+	private int mailboxSize = Integer.getInteger("chat.mailboxSize", 100);
+	private boolean rejectWhenFull = "reject".equalsIgnoreCase(System.getProperty("chat.mailboxPolicy", "oldest"));
+	private long nextExpiry = Long.MAX_VALUE; // when the oldest unread message expires, so most expiry checks do nothing
+	private ScheduledExecutorService expiryTimer;
+	private TrafficCapture capture; // set with -Dchat.capture=<file> to record traffic for the Replay tool
+	private boolean replyMarkers = Boolean.getBoolean("chat.replyMarkers"); // end every reply with REPLY_END, for the Replay tool
 	
 	/**
 	 * The constructor for the ChatServer class sets the port as specified by the user 
@@ -31,10 +65,51 @@ public class Server {
 	 * @param port
 	 */
 	public Server(int port) {
+		this(port, ".");
+	}
+	
+	/**
+	 * This constructor keeps the usernames, unread messages, and spooled files in a different folder,
+	 * so that tests can use a scratch folder instead of the real data.
+	 * @param 	port
+	 * @param 	directory, the folder to keep the data in
+	 */
+	public Server(int port, String directory) {
+		this.usernameFile = new File(directory, "usernames.txt").getPath();
+		this.messageFile = new File(directory, "unreadMessages.txt").getPath();
+		this.fileDirectory = new File(directory, "files").getPath();
 		this.port = port;
-		this.activeThreads = new ArrayList<ServerThread>();
+		this.sessions = new ConcurrentHashMap<String, Set<ServerThread>>();
 		this.usernames = loadFromFile(usernameFile);
-		this.unreadMessages = processMessages(loadFromFile(messageFile));
+		this.metrics = new Metrics();
+		this.mailboxes = new HashMap<String, Mailbox>();
+		loadUnreadMessages();
+		this.transfers = new HashMap<Integer, FileTransfer>();
+		this.presence = new PresenceNotifier(this);
+	}
+	
+	/**
+	 * This method starts recording every frame the server receives into a capture file.
+	 * The file is closed when the server shuts down.
+	 * @param 	filename, the capture file to create
+	 * @throws 	IOException
+	 */
+	public void startCapture(String filename) throws IOException {
+		final TrafficCapture newCapture = new TrafficCapture(filename);
+		this.capture = newCapture;
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				newCapture.close();
+			}
+		});
+	}
+	
+	public TrafficCapture getCapture() {
+		return capture;
+	}
+	
+	public boolean sendsReplyMarkers() {
+		return replyMarkers;
 	}
 	
 	/**
@@ -46,6 +121,9 @@ public class Server {
 	 */
 	private ArrayList<String> loadFromFile(String filename) {
 		ArrayList<String> aList = new ArrayList<String>();
+		if (!new File(filename).exists()) { // a new data folder just starts out empty
+			return aList;
+		}
 	    try  { // using BufferedReader because it's fast
 	    	BufferedReader br = new BufferedReader(new FileReader(filename));
 	        String line;
@@ -63,22 +141,32 @@ public class Server {
 	 * This method returns the list of usernames to print to users when they request to see it
 	 */
 	public String getUsernames() {
-		return usernames.toString();
+		synchronized (usernames) {
+			return usernames.toString();
+		}
+	}
+	
+	public int getPort() {
+		return port;
 	}
 	
 	/**
 	 * This method starts the server and keeps it running through an infinite loop to allow new connections from multiple clients.
-	 * It uses a ServerSocket to wait for new connections, then a Socket for the client connections.
+	 * It uses a ServerSocketChannel to wait for new connections, then a Socket for the client connections.
+	 * The sockets come from channels so that files can be sent to them with FileChannel.transferTo.
 	 */
 	public void start() {
 		running = true; // need this boolean to not have an infinite loop so the ServerSocket can be closed
 		try {
-			ServerSocket serverSocket = new ServerSocket(port); // start the ServerSocket at the port
+			serverSocket = ServerSocketChannel.open(); // start the ServerSocket at the port
+			serverSocket.bind(new InetSocketAddress(port));
+			port = ((InetSocketAddress) serverSocket.getLocalAddress()).getPort(); // in case port 0 asked for any free port
+			startExpiryTimer();
 			// keep the server running for new connections
 			while (running) {
 				System.out.println("Server waiting on port : " + port); // for debugging purposes
-				Socket socket = serverSocket.accept(); // accept new connection from client
-				ServerThread thread = new ServerThread(socket, this); // start a new thread on the client socket
+				Socket socket = serverSocket.accept().socket(); // accept new connection from client
+				ServerThread thread = new ServerThread(socket, this, clientId++); // start a new thread on the client socket
 				thread.start(); // start the thread
 			} 
 			// this next try/catch took a while to figure out but is needed to actually close the ServerSocket and avoid resource leak
@@ -90,25 +178,114 @@ public class Server {
 			}
 
 		} catch (IOException e) {
-			System.out.println("Error creating new ServerSocket: " + e); // add where this is happening for debugging
+			if (running) { // otherwise stop() closed the socket, which is how accept gets interrupted
+				System.out.println("Error creating new ServerSocket: " + e); // add where this is happening for debugging
+			}
+		}
+	}
+	
+	/**
+	 * This method stops the server from accepting new connections. Connections that are already open keep running.
+	 * It's mostly used by tests that start a server of their own.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Error closing ServerSocket: " + e);
 		}
 	}
 	
 	/**
 	 * This method adds a thread once a user has an established username.
 	 * This is then used to see who's online for sending messages.
+	 * A user can be logged in from more than one place at once, so each user has a set of threads (sessions).
+	 * A new session starts out having read whatever the user already read on another device.
+	 * Anyone watching the user is told they came online.
 	 * @param 	thread to remove
 	 */
 	public void addThread(ServerThread thread) {
-		activeThreads.add(thread);
+		String username = thread.getUsername();
+		synchronized (mailboxes) {
+			Mailbox mailbox = mailboxes.get(username);
+			thread.setReadCursor(mailbox == null ? -1 : mailbox.getReadCursor());
+		}
+		sessions.compute(username, (k, threads) -> { // add inside the same step so removeThread can't drop the set in between
+			if (threads == null) {
+				threads = ConcurrentHashMap.<ServerThread>newKeySet();
+			}
+			threads.add(thread);
+			return threads;
+		});
+		presence.changed(username);
 	}
 	
 	/**
-	 * This method removes a thread when a user chooses to quit the program.
+	 * This method removes a thread when a user chooses to quit the program or their connection drops.
+	 * Unread messages that only this session was still holding on to are cleaned up.
+	 * Anyone watching the user is told they went offline. It's fine to call this more than once for the same thread.
 	 * @param	the ServerThread to remove
 	 */
 	public void removeThread(ServerThread thread) {
-		activeThreads.remove(thread);
+		String username = thread.getUsername();
+		if (username == null) { // the connection closed before logging in
+			return;
+		}
+		final boolean[] removed = new boolean[1];
+		sessions.computeIfPresent(username, (k, threads) -> {
+			removed[0] = threads.remove(thread);
+			return threads.isEmpty() ? null : threads; // returning null drops the user from the map
+		});
+		if (removed[0]) {
+			synchronized (mailboxes) {
+				Mailbox mailbox = mailboxes.get(username);
+				if (mailbox != null) {
+					trimMailbox(username, mailbox);
+				}
+			}
+			presence.changed(username);
+		}
+	}
+	
+	/**
+	 * This method returns the sessions of a user, which is empty if they are offline.
+	 * @param 	username
+	 * @return	the Set of ServerThreads the user is logged in on
+	 */
+	public Set<ServerThread> getSessions(String username) {
+		Set<ServerThread> threads = sessions.get(username);
+		return threads == null ? Collections.<ServerThread>emptySet() : threads;
+	}
+	
+	/**
+	 * These methods pass presence subscriptions on to the PresenceNotifier. See that class for how notifications are batched.
+	 */
+	public boolean watch(String watcher, String user) {
+		return presence.watch(watcher, user.toLowerCase());
+	}
+	
+	public boolean unwatch(String watcher, String user) {
+		return presence.unwatch(watcher, user.toLowerCase());
+	}
+	
+	public ArrayList<String> getWatching(String watcher) {
+		return presence.getWatching(watcher);
+	}
+	
+	public PresenceNotifier getPresence() {
+		return presence;
+	}
+	
+	/**
+	 * This method checks if a user has a connection that is logged in.
+	 * @param 	username
+	 * @return	true if the user is online
+	 */
+	public boolean isOnline(String username) {
+		return !getSessions(username).isEmpty();
 	}
 	
 	/**
@@ -118,12 +295,31 @@ public class Server {
 	 * @param 	username
 	 */
 	public void addUsername(String username) {
-		usernames.add(username.toLowerCase().trim());
-		addLineToFile(username, usernameFile);
+		synchronized (usernames) {
+			usernames.add(username.toLowerCase().trim());
+			addLineToFile(username, usernameFile);
+		}
+	}
+	
+	/**
+	 * This method creates an account only if the username isn't taken yet, checking and adding in one step
+	 * so two people creating the same name at the same time can't both get it. The server's own name is never available.
+	 * @param 	username
+	 * @return	true if the account was created, false if the name was taken
+	 */
+	public boolean createUsername(String username) {
+		synchronized (usernames) {
+			if (checkUsername(username) || username.trim().equalsIgnoreCase(SERVER_NAME)) {
+				return false;
+			}
+			addUsername(username);
+			return true;
+		}
 	}
 	
 	/**
 	 * This method takes in an ArrayList of messages and converts them to Message objects for easier usage, especially searching usernames.
+	 * Lines saved before messages had a timestamp are treated as if they were sent now.
 	 * @param 	messages, the ArrayList of string messages to convert
 	 * @return	an ArrayList of Message objects
 	 */
@@ -131,56 +327,300 @@ public class Server {
 		ArrayList<Message> messageObjects = new ArrayList<Message>();
 		for (int i = 0; i < messages.size(); i++) {
 			String message = messages.get(i);
-			String[] parts = message.split(delimiter);
-			Message m  = new Message(parts[0], parts[1], parts[2]); // assuming all strings are stored in order of sender, recipient, message
+			String[] parts = message.split(Pattern.quote(delimiter)); // quoted because split takes a regex and | means or
+			if (parts.length < 3) { // skip blank or broken lines instead of crashing on startup
+				continue;
+			}
+			long sentAt = System.currentTimeMillis();
+			if (parts.length > 3) {
+				try {
+					sentAt = Long.parseLong(parts[3]);
+				} catch (NumberFormatException e) {
+					System.out.println("Bad timestamp on unread message: " + message);
+				}
+			}
+			Message m  = new Message(parts[0], parts[1], parts[2], sentAt); // assuming all strings are stored in order of sender, recipient, message, time
 			messageObjects.add(m);
 		}
 		return messageObjects;
 	}
 	
+	/**
+	 * This method loads the unread messages from the file into the mailboxes when the server starts.
+	 * Messages that expired while the server was down are dropped here, and the mailbox limits are applied,
+	 * so old messages don't pile up in memory or get loaded again next time.
+	 */
+	private void loadUnreadMessages() {
+		long cutoff = System.currentTimeMillis() - messageTtl;
+		ArrayList<Message> dropped = new ArrayList<Message>();
+		ArrayList<String> reasons = new ArrayList<String>();
+		ArrayList<String> lines = loadFromFile(messageFile);
+		boolean stamped = false; // lines from before messages had a timestamp get one now, which has to be saved or it's "now" again next time
+		for (String line : lines) {
+			stamped |= line.split(Pattern.quote(delimiter)).length == 3;
+		}
+		synchronized (mailboxes) {
+			for (Message m : processMessages(lines)) {
+				if (m.getSentAt() <= cutoff) {
+					metrics.messageExpired();
+					dropped.add(m);
+					reasons.add("it expired before " + m.getRecipient() + " read it");
+					continue;
+				}
+				Mailbox mailbox = getMailbox(m.getRecipient());
+				if (mailbox.unreadSize() >= mailboxSize && rejectWhenFull) {
+					metrics.messageRejected();
+					dropped.add(m);
+					reasons.add(m.getRecipient() + "'s mailbox is full");
+					continue;
+				}
+				for (Message evicted : makeRoom(mailbox)) {
+					dropped.add(evicted);
+					reasons.add(evicted.getRecipient() + "'s mailbox was full");
+				}
+				addToMailbox(mailbox, m);
+			}
+			if (dropped.size() > 0 || stamped) {
+				saveUnreadMessages();
+			}
+		}
+		for (int i = 0; i < dropped.size(); i++) {
+			notifyDropped(dropped.get(i), reasons.get(i));
+		}
+	}
+	
+	/**
+	 * These helpers must be called while holding the mailboxes lock.
+	 * getMailbox finds or creates a user's mailbox, makeRoom evicts the oldest messages until there is space for one more unread one,
+	 * and addToMailbox adds a message and moves the next expiry time up if it's now the first to expire.
+	 */
+	private Mailbox getMailbox(String username) {
+		String key = username.toLowerCase();
+		Mailbox mailbox = mailboxes.get(key);
+		if (mailbox == null) {
+			mailbox = new Mailbox();
+			mailboxes.put(key, mailbox);
+		}
+		return mailbox;
+	}
+	
+	private ArrayList<Message> makeRoom(Mailbox mailbox) {
+		ArrayList<Message> evicted = new ArrayList<Message>();
+		while (mailbox.unreadSize() >= mailboxSize && !mailbox.isEmpty()) {
+			Message m = mailbox.removeOldest();
+			if (!mailbox.isRead(m)) { // one the user already read just goes quietly
+				evicted.add(m);
+				metrics.messageEvicted();
+			}
+		}
+		return evicted;
+	}
+	
+	private void addToMailbox(Mailbox mailbox, Message m) {
+		m.setSequence(nextSequence++);
+		mailbox.add(m);
+		nextExpiry = Math.min(nextExpiry, m.getSentAt() + messageTtl);
+	}
+	
+	/**
+	 * This method rewrites the unread message file from the mailboxes. It must be called while holding the mailboxes lock
+	 * so no other thread adds a line to the file in the middle of the rewrite.
+	 * Messages the user has read on some device are left out even if another session is still holding on to them.
+	 */
+	private void saveUnreadMessages() {
+		ArrayList<String> unreadStrings = new ArrayList<String>();
+		for (Mailbox mailbox : mailboxes.values()) {
+			for (Message m : mailbox.getMessagesAfter(mailbox.getReadCursor())) {
+				unreadStrings.add(m.toString());
+			}
+		}
+		rewriteFile(messageFile, unreadStrings);
+	}
+	
+	/**
+	 * This method removes the messages every session of a user has read. If the user has no sessions,
+	 * anything read on any device is removed. It must be called while holding the mailboxes lock.
+	 */
+	private void trimMailbox(String username, Mailbox mailbox) {
+		long readByAll = mailbox.getReadCursor();
+		for (ServerThread session : getSessions(username)) {
+			readByAll = Math.min(readByAll, session.getReadCursor());
+		}
+		mailbox.removeThrough(readByAll);
+		if (mailbox.isEmpty()) {
+			mailboxes.remove(username);
+		}
+	}
+	
 	/**
 	 * This method checks for any unread messages when a user logs in or deletes their account
 	 * @param username
 	 */
 	public boolean checkForUnreadMessages(String username) {
-		int count = 0;
-		for (int i = 0; i < unreadMessages.size(); i++) {
-			Message m = unreadMessages.get(i);
-			if (m.getRecipient().equals(username)) {
-				return true;
-			}
+		synchronized (mailboxes) {
+			Mailbox mailbox = mailboxes.get(username.toLowerCase());
+			return mailbox != null && mailbox.hasMessagesAfter(mailbox.getReadCursor());
+		}
+	}
+	
+	/**
+	 * This method checks for unread messages that one session hasn't seen yet.
+	 * @param 	session, the ServerThread of the session
+	 */
+	public boolean checkForUnreadMessages(ServerThread session) {
+		synchronized (mailboxes) {
+			Mailbox mailbox = mailboxes.get(session.getUsername());
+			return mailbox != null && mailbox.hasMessagesAfter(session.getReadCursor());
 		}
-		return false;
 	}
 
 	/**
 	 * This method returns all of the unread messages for a specified user.
-	 * Because the messages are added to the end of the ArrayList when they are sent, 
-	 * then read from the ArrayList starting at the beginning, they should be in chronological order.
+	 * Because the messages are added to the end of the mailbox when they are sent, 
+	 * then read from the mailbox starting at the beginning, they should be in chronological order.
 	 * @param 	username searching for unread messages
 	 * @return	the ArrayList of unread messages
 	 */
 	public ArrayList<Message> getUnreadMessages(String username) {
-		ArrayList<Message> unreads = new ArrayList<Message>();
-		for (int i = 0; i < unreadMessages.size(); i++) {
-			Message m = unreadMessages.get(i);
-			if (m.getRecipient().equals(username)) {
-				unreads.add(m);
-				unreadMessages.remove(i); // then remove that message from the arraylist and decrement i because the values have shifted
-				i--;
-			}
-		}
-		/**
-		 * Then make sure the unreadMessages file is updated as well
-		 * Ideally this code would not be here so that the user can get their unread messages quickly, 
-		 * But in a non persisting server, we want to ensure the information is updated immediately.
-		 */
-		ArrayList<String> unreadStrings = new ArrayList<String>();
-		for (Message m : unreadMessages) {
-			unreadStrings.add(m.toString());
+		return readMessages(username.toLowerCase(), null);
+	}
+	
+	/**
+	 * This method returns the unread messages one session hasn't seen yet and moves its cursor past them.
+	 * @param 	session, the ServerThread of the session
+	 * @return	the ArrayList of unread messages
+	 */
+	public ArrayList<Message> getUnreadMessages(ServerThread session) {
+		return readMessages(session.getUsername(), session);
+	}
+	
+	private ArrayList<Message> readMessages(String username, ServerThread session) {
+		synchronized (mailboxes) {
+			Mailbox mailbox = mailboxes.get(username);
+			if (mailbox == null) {
+				return new ArrayList<Message>();
+			}
+			ArrayList<Message> unreads = mailbox.getMessagesAfter(session == null ? mailbox.getReadCursor() : session.getReadCursor());
+			long now = System.currentTimeMillis();
+			for (Message m : unreads) { // how long sampled messages waited to be read, counted on the first device that reads them
+				if (!mailbox.isRead(m) && metrics.shouldSample()) {
+					metrics.getHistogram(Metrics.OFFLINE_DWELL).record(now - m.getSentAt());
+				}
+			}
+			if (unreads.size() > 0) {
+				long last = unreads.get(unreads.size() - 1).getSequence();
+				if (session != null) {
+					session.setReadCursor(last);
+				}
+				mailbox.setReadCursor(last);
+				trimMailbox(username, mailbox);
+				/**
+				 * Then make sure the unreadMessages file is updated as well
+				 * Ideally this code would not be here so that the user can get their unread messages quickly, 
+				 * But in a non persisting server, we want to ensure the information is updated immediately.
+				 */
+				saveUnreadMessages();
+			}
+			return unreads;
+		}
+	}
+	
+	/**
+	 * This method drops every unread message that is older than the TTL and tells the senders.
+	 * Messages the user read on one device but another session was still holding on to are dropped without telling anyone.
+	 * It is run in the background by the expiry timer. Each mailbox is in order, so only the front of each one is looked at,
+	 * and if the oldest message anywhere isn't due yet it returns right away without looking at any mailboxes.
+	 */
+	public void expireMessages() {
+		long now = System.currentTimeMillis();
+		ArrayList<Message> expired = new ArrayList<Message>();
+		synchronized (mailboxes) {
+			if (now < nextExpiry) {
+				return;
+			}
+			long cutoff = now - messageTtl;
+			nextExpiry = Long.MAX_VALUE;
+			Iterator<Mailbox> iterator = mailboxes.values().iterator();
+			while (iterator.hasNext()) {
+				Mailbox mailbox = iterator.next();
+				for (Message m : mailbox.removeExpired(cutoff)) {
+					if (!mailbox.isRead(m)) { // read on some device, so nobody needs to hear it expired
+						expired.add(m);
+					}
+				}
+				if (mailbox.isEmpty()) {
+					iterator.remove();
+				}
+				else {
+					nextExpiry = Math.min(nextExpiry, mailbox.getMessages().iterator().next().getSentAt() + messageTtl);
+				}
+			}
+			if (expired.size() > 0) {
+				saveUnreadMessages();
+			}
+		}
+		for (Message m : expired) {
+			metrics.messageExpired();
+			notifyDropped(m, "it expired before " + m.getRecipient() + " read it");
 		}
-		rewriteFile(messageFile, unreadStrings);
-		return unreads;
+	}
+	
+	/**
+	 * This method starts the background timer that expires old messages. It checks every tenth of the TTL,
+	 * but never more than once a second or less than once a minute.
+	 */
+	private void startExpiryTimer() {
+		if (expiryTimer != null) {
+			return;
+		}
+		expiryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "message-expiry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long interval = Math.max(1000, Math.min(messageTtl / 10, 60000));
+		expiryTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expireMessages();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * This method tells the sender of a message that it was dropped without being read.
+	 * If they are offline the notice goes in their own mailbox. Notices from the server itself are never reported, so this can't loop.
+	 * @param 	m, the message that was dropped
+	 * @param 	reason, why it was dropped
+	 */
+	private void notifyDropped(Message m, String reason) {
+		if (m.getSender().equals(SERVER_NAME)) {
+			return;
+		}
+		String preview = m.getMessage().length() > 30 ? m.getMessage().substring(0, 30) + "..." : m.getMessage();
+		sendMessage(SERVER_NAME, m.getSender(), "Your message to " + m.getRecipient() + " (\"" + preview + "\") was dropped because " + reason + ".");
+	}
+	
+	/**
+	 * These methods change the unread message limits while the server is running, mostly for testing.
+	 */
+	public void setMessageTtl(long millis) {
+		synchronized (mailboxes) {
+			this.messageTtl = millis;
+			this.nextExpiry = Long.MIN_VALUE; // recheck everything on the next pass
+		}
+	}
+	
+	public void setMailboxLimit(int size, boolean rejectWhenFull) {
+		synchronized (mailboxes) {
+			this.mailboxSize = size;
+			this.rejectWhenFull = rejectWhenFull;
+		}
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
 	}
 	
 	/**
@@ -190,8 +630,10 @@ public class Server {
 	 * @return	true if username is in list, false if not
 	 */
 	public boolean checkUsername(String username) {
-		if (usernames.contains(username.toLowerCase())) {
-			return true;
+		synchronized (usernames) {
+			if (usernames.contains(username.toLowerCase())) {
+				return true;
+			}
 		}
 		return false;
 	}
@@ -202,8 +644,34 @@ public class Server {
 	 * @param username
 	 */
 	public void removeUser(String username) {
-		usernames.remove(username);
-		rewriteFile(usernameFile, usernames);
+		removeUser(username, null);
+	}
+	
+	/**
+	 * This method deletes an account the same way, and also logs out every other session of the user
+	 * and throws away their mailbox, so someone who creates the name again starts fresh.
+	 * @param 	username
+	 * @param 	current, the session that asked for the delete, which is left to finish up itself (can be null)
+	 */
+	public void removeUser(String username, ServerThread current) {
+		synchronized (usernames) { // hold the lock while rewriting so a new account can't be added to the file mid-rewrite
+			usernames.remove(username);
+			rewriteFile(usernameFile, usernames);
+		}
+		Set<ServerThread> threads = sessions.remove(username);
+		if (threads != null) {
+			for (ServerThread thread : threads) {
+				if (thread != current) {
+					thread.logout("\n>> Your account was deleted on another device.\n");
+				}
+			}
+		}
+		synchronized (mailboxes) {
+			if (mailboxes.remove(username) != null) {
+				saveUnreadMessages();
+			}
+		}
+		presence.forget(username);
 	}
 	
 	/**
@@ -215,7 +683,8 @@ public class Server {
 	 */
 	public void rewriteFile(String f, ArrayList<String> al) {
 		FileWriter fileWriter;
-		File newFile = new File("temp" + f);
+		File oldFile = new File(f);
+		File newFile = new File(oldFile.getParentFile(), "temp" + oldFile.getName()); // keep the temp file in the same folder
 		try {
 			fileWriter = new FileWriter(newFile);
 			PrintWriter printWriter = new PrintWriter(fileWriter);
@@ -224,7 +693,6 @@ public class Server {
 			}
 			
 			// then delete the old file and rename the temp file
-			File oldFile = new File(f);
 			oldFile.delete();
 			newFile.renameTo(oldFile);
 			printWriter.close();
@@ -252,44 +720,213 @@ public class Server {
 		} 
 	}
 	
-	/**
-	 * This method checks to see if a user is online based on the active threads that are being stored.
-	 * It goes through each thread and checks the username to see if it matches the one to search for.
-	 * It returns the thread to 
-	 * @param 	username to look for
-	 * @return	true if the user is online, false if not
-	 */
-	
-	public ServerThread checkThreads(String username) {
-		for (int i = 0; i < activeThreads.size(); i++) {
-			ServerThread thread = activeThreads.get(i);
-			if (thread.getUsername().equals(username)) { 
-				return thread;
-			}
-		}
-		return null;
-	}
-	
 	/**
 	 * This method sends a message to a user who is in the database
+	 * If the user is online it goes to every session they have. The line is encoded once and the same bytes are written to each.
+	 * If none of the sessions can take it (they all just dropped), it is stored as unread instead so it isn't lost.
 	 * @param 	sender, who sent the message
 	 * @param 	recipient, who is supposed to receive the message
 	 * @param 	message, the text to be sent
 	 * @return	boolean, true if the user is online and false if not to alert the recipient.
 	 */
 	public boolean sendMessage(String sender, String recipient, String message) {
-		ServerThread thread = checkThreads(recipient.toLowerCase());
-		if (thread != null) { // if  the user is online
-			thread.sendMessage(sender, message);
-			return true;
+		return sendMessage(sender, recipient, message, metrics.startTrace(MessageTrace.NOT_RECEIVED)) == Delivery.DELIVERED;
+	}
+	
+	/**
+	 * This method does the same as above, but with a trace that gets stamped at each hop (see MessageTrace).
+	 * It says whether the message was delivered, stored, or rejected, so the sender can be told which one.
+	 * The mailbox is checked and filled in one step, so there's no separate check that could be out of date by the time the message is stored.
+	 * @param 	trace, the MessageTrace for this message, or null if it isn't being traced
+	 * @return	the Delivery
+	 */
+	public Delivery sendMessage(String sender, String recipient, String message, MessageTrace trace) {
+		if (trace != null) {
+			trace.routed();
+		}
+		Set<ServerThread> threads = getSessions(recipient.toLowerCase());
+		boolean delivered = false;
+		if (!threads.isEmpty()) { // if  the user is online
+			byte[] line = ServerThread.encodeLine("\n>> " + sender + ": " + message + "\n");
+			for (ServerThread thread : threads) {
+				if (thread.sendEncoded(line)) {
+					delivered = true;
+					if (trace != null) {
+						trace.written();
+					}
+				}
+			}
+		}
+		if (delivered) {
+			return Delivery.DELIVERED;
 		}
 		else { // otherwise store it in unread messages so it can be sent later when the user logs in
-			Message m = new Message(sender, recipient, message.replaceAll("\n", ""));
-			unreadMessages.add(m);
-			String messageString = sender + delimiter + recipient + delimiter + message; // use format dictated for the file
-			addLineToFile(messageString, messageFile);
-			return false;
+			Message m = new Message(sender, recipient.toLowerCase(), message.replaceAll("\n", ""));
+			ArrayList<Message> evicted;
+			synchronized (mailboxes) {
+				Mailbox mailbox = getMailbox(m.getRecipient());
+				if (mailbox.unreadSize() >= mailboxSize && rejectWhenFull) {
+					evicted = null;
+				}
+				else {
+					evicted = makeRoom(mailbox);
+					addToMailbox(mailbox, m);
+					if (evicted.size() > 0) { // evicted lines have to come out of the file too
+						saveUnreadMessages();
+					}
+					else {
+						addLineToFile(m.toString(), messageFile); // use format dictated for the file
+					}
+					if (trace != null) {
+						trace.persisted();
+					}
+				}
+			}
+			if (evicted == null) { // the caller tells the sender, so there's no notice for this one
+				metrics.messageRejected();
+				return Delivery.REJECTED;
+			}
+			for (Message e : evicted) {
+				notifyDropped(e, e.getRecipient() + "'s mailbox was full");
+			}
+			return Delivery.STORED;
+		}
+	}
+	
+	/**
+	 * This method starts a file transfer from a user to another user.
+	 * If the same sender already has an unfinished transfer of this file to this recipient, that one is returned so it can resume.
+	 * Otherwise the file is relayed if the recipient is online and spooled to disk if not.
+	 * @param 	source, the thread of the user sending the file
+	 * @param 	recipient, who is supposed to receive the file
+	 * @param 	name, the file name without any folders
+	 * @param 	size, the size of the file in bytes
+	 * @param 	modified, when the sender's copy of the file was last changed, so a different file with the same name isn't resumed
+	 * @return	the FileTransfer, whose received count is the offset to start sending from
+	 * @throws 	IOException if the file name isn't allowed or the spool file can't be opened
+	 */
+	public synchronized FileTransfer startFileTransfer(ServerThread source, String recipient, String name, long size, long modified) throws IOException {
+		if (!isSafeFileName(name) || !isSafeFileName(recipient) || !isSafeFileName(source.getUsername()) || size < 0) {
+			throw new IOException("that file name is not allowed");
+		}
+		for (FileTransfer transfer : transfers.values()) {
+			if (transfer.matches(source, recipient, name, size, modified)) {
+				return transfer;
+			}
 		}
+		FileTransfer transfer;
+		Set<ServerThread> threads = getSessions(recipient);
+		if (!threads.isEmpty()) {
+			transfer = new FileTransfer(nextTransferId++, source, recipient, name, size, modified, threads);
+		}
+		else {
+			File spoolFile = new File(new File(new File(fileDirectory, recipient), source.getUsername()), name);
+			transfer = new FileTransfer(nextTransferId++, source, recipient, name, size, modified, spoolFile);
+		}
+		transfers.put(transfer.getId(), transfer);
+		return transfer;
+	}
+	
+	/**
+	 * This method passes a chunk of a file on to the transfer it belongs to.
+	 * Only the thread that started a transfer can send chunks for it. Once the last chunk is in, the transfer is finished and forgotten.
+	 * A failed chunk cancels the transfer, and the sender can start it again to resume.
+	 * @param 	source, the thread the chunk came in on
+	 * @param 	transferId, the id of the transfer
+	 * @param 	offset, where in the file the chunk starts
+	 * @param 	data, the buffer holding the chunk
+	 * @param 	length, the number of bytes of the buffer to use
+	 * @return	the FileTransfer, so the caller can acknowledge how much has been received
+	 * @throws 	IOException if the transfer doesn't exist or the chunk can't be relayed or spooled
+	 */
+	public FileTransfer receiveChunk(ServerThread source, int transferId, long offset, byte[] data, int length) throws IOException {
+		FileTransfer transfer;
+		synchronized (this) {
+			transfer = transfers.get(transferId);
+		}
+		if (transfer == null || transfer.getSource() != source) {
+			throw new IOException("there is no transfer " + transferId);
+		}
+		try {
+			transfer.write(offset, data, length);
+			if (transfer.isComplete()) {
+				endFileTransfer(transfer);
+				transfer.finish();
+			}
+		} catch (IOException e) {
+			endFileTransfer(transfer);
+			transfer.close();
+			throw e;
+		}
+		return transfer;
+	}
+	
+	private synchronized void endFileTransfer(FileTransfer transfer) {
+		transfers.remove(transfer.getId());
+	}
+	
+	/**
+	 * This method drops all of the transfers a thread started, which happens when its user leaves.
+	 * Spooled .part files stay on disk so the upload can be resumed from the same offset later.
+	 * @param 	source, the thread that is going away
+	 */
+	public synchronized void abandonFileTransfers(ServerThread source) {
+		Iterator<FileTransfer> iterator = transfers.values().iterator();
+		while (iterator.hasNext()) {
+			FileTransfer transfer = iterator.next();
+			if (transfer.getSource() == source) {
+				transfer.close();
+				iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * This method lists the files that are waiting on disk for a user, as sender/name so the same name from two people doesn't clash.
+	 * Files still being uploaded (.part and .part.info) are left out.
+	 * @param 	username
+	 * @return	an ArrayList of sender/name Strings
+	 */
+	public ArrayList<String> getPendingFiles(String username) {
+		ArrayList<String> files = new ArrayList<String>();
+		File[] senders = new File(fileDirectory, username).listFiles();
+		if (senders == null) {
+			return files;
+		}
+		for (File senderFolder : senders) {
+			File[] senderFiles = senderFolder.listFiles();
+			if (senderFiles == null) {
+				continue;
+			}
+			for (File f : senderFiles) {
+				if (!FileTransfer.isPartFile(f.getName())) {
+					files.add(senderFolder.getName() + "/" + f.getName());
+				}
+			}
+		}
+		return files;
+	}
+	
+	/**
+	 * This method finds a file waiting for a user from the sender/name String shown by getPendingFiles.
+	 * @param 	username, who the file was sent to
+	 * @param 	path, the sender/name of the file
+	 * @return	the File, or null if there is no such file
+	 */
+	public File getPendingFile(String username, String path) {
+		String[] parts = path.split("/");
+		if (parts.length != 2 || !isSafeFileName(parts[0]) || !isSafeFileName(parts[1]) || FileTransfer.isPartFile(parts[1])) {
+			return null;
+		}
+		File f = new File(new File(new File(fileDirectory, username), parts[0]), parts[1]);
+		return f.isFile() ? f : null;
+	}
+	
+	/**
+	 * This method makes sure a name can be used as a single folder or file name, so no one can write outside the files folder.
+	 */
+	private boolean isSafeFileName(String name) {
+		return name != null && name.length() > 0 && !name.startsWith(".") && name.indexOf('/') < 0 && name.indexOf('\\') < 0;
 	}
 	
 	/**
@@ -298,8 +935,8 @@ public class Server {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		if (args.length != 1) {
-			System.err.println("Usage: java Server <port number>");
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java Server <port number> [data folder]");
 			System.exit(1);
 		}
 
@@ -315,7 +952,17 @@ public class Server {
 		}
 		
 		// might want to add a try/catch around this
-		Server server = new Server(port);
+		Server server = new Server(port, args.length > 1 ? args[1] : ".");
+		String captureFile = System.getProperty("chat.capture");
+		if (captureFile != null) {
+			try {
+				server.startCapture(captureFile);
+				System.out.println("Recording traffic to " + captureFile);
+			} catch (IOException e) {
+				System.err.println("Error starting capture: " + e);
+				System.exit(1);
+			}
+		}
 		server.start();
 	}
 	
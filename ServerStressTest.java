@@ -0,0 +1,448 @@
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+import org.junit.Test;
+
+/**
+ * These tests hammer a real Server from many threads at once to look for races in its shared state
+ * (the usernames, the sessions, and the unread mailboxes). Each test starts its own server on a free port
+ * with a scratch data folder, so the real usernames and messages aren't touched.
+ * The throughput test doesn't check for bugs, it prints how throughput changes from 1 thread up to the number of cores.
+ */
+public class ServerStressTest {
+	private static final int CORES = Runtime.getRuntime().availableProcessors();
+	private static final int WORKERS = Math.max(4, CORES * 2);
+	private static final Pattern TOKEN = Pattern.compile("tok-\\d+-\\d+");
+
+	// a server with its own empty data folder, running on its own thread on any free port
+	private Server startServer() throws Exception {
+		final Server server = new Server(0, Files.createTempDirectory("chatstress").toString());
+		server.setMailboxLimit(1000000, false); // no evictions, so every message can be accounted for
+		new Thread() {
+			public void run() {
+				server.start();
+			}
+		}.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue("server did not start", server.getPort() != 0);
+		return server;
+	}
+
+	/**
+	 * A bare bones client that speaks the wire protocol and keeps every line the server sends.
+	 * It always reads until the server closes the connection, so nothing the server wrote is missed.
+	 */
+	private static class TestClient {
+		private Socket socket;
+		private DataOutputStream out;
+		private Thread reader;
+		private List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+		TestClient(int port) throws IOException {
+			socket = new Socket("localhost", port);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			final InputStream in = new BufferedInputStream(socket.getInputStream());
+			reader = new Thread() {
+				public void run() {
+					StringBuilder line = new StringBuilder();
+					try {
+						int b;
+						while ((b = in.read()) >= 0) {
+							if (b == '\n') {
+								lines.add(line.toString());
+								line.setLength(0);
+							}
+							else {
+								line.append((char) b);
+							}
+						}
+					} catch (IOException e) {
+						// the socket was closed
+					}
+				}
+			};
+			reader.start();
+		}
+
+		void send(String s) throws IOException {
+			byte[] bytes = s.getBytes("ASCII");
+			out.writeChar('s');
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.flush();
+		}
+
+		void quit() throws Exception {
+			send("QUIT");
+			waitForClose();
+		}
+
+		// hang up without a QUIT, like a client that crashed or lost its network
+		void hangUp() throws Exception {
+			out.flush();
+			socket.shutdownOutput();
+			waitForClose();
+		}
+
+		void waitForClose() throws Exception {
+			reader.join(10000);
+			assertFalse("server never closed the connection", reader.isAlive());
+			socket.close();
+		}
+
+		void waitFor(String text) throws Exception {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!saw(text) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertTrue("server never sent " + text, saw(text));
+		}
+
+		boolean saw(String text) {
+			synchronized (lines) {
+				for (String line : lines) {
+					if (line.contains(text)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		List<String> tokens() {
+			ArrayList<String> tokens = new ArrayList<String>();
+			synchronized (lines) {
+				for (String line : lines) {
+					Matcher matcher = TOKEN.matcher(line);
+					while (matcher.find()) {
+						tokens.add(matcher.group());
+					}
+				}
+			}
+			return tokens;
+		}
+	}
+
+	/**
+	 * This runs a task on a number of threads at once, started together, and fails if any of them throws.
+	 */
+	private void runConcurrently(int threads, final Callable<Void> task) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					go.await();
+					return task.call();
+				}
+			}));
+		}
+		go.countDown();
+		for (Future<Void> future : futures) {
+			future.get(120, TimeUnit.SECONDS); // rethrows anything that went wrong on that thread
+		}
+		pool.shutdown();
+	}
+
+	private void assertNoDuplicates(String usernames) {
+		String[] names = usernames.substring(1, usernames.length() - 1).split(", ");
+		HashSet<String> seen = new HashSet<String>();
+		for (String name : names) {
+			assertTrue("duplicate username " + name, seen.add(name));
+		}
+	}
+
+	@Test
+	// make sure that when many clients CREATE the same names at the same time, each name is only created once
+	public void testConcurrentCreate() throws Exception {
+		final Server server = startServer();
+		final int names = 20;
+		final AtomicIntegerArray created = new AtomicIntegerArray(names);
+		final AtomicInteger worker = new AtomicInteger();
+		runConcurrently(WORKERS, new Callable<Void>() {
+			public Void call() throws Exception {
+				int w = worker.getAndIncrement();
+				for (int i = 0; i < names; i++) {
+					int name = (i + w) % names; // start at different names so everyone isn't in lockstep
+					TestClient client = new TestClient(server.getPort());
+					client.send("CREATE");
+					client.send("race" + name);
+					client.quit(); // QUIT works both logged in and still at the login prompt
+					if (client.saw("Welcome, race" + name)) {
+						created.incrementAndGet(name);
+					}
+				}
+				return null;
+			}
+		});
+		server.stop();
+		for (int i = 0; i < names; i++) {
+			assertEquals("times race" + i + " was created", 1, created.get(i));
+		}
+		assertNoDuplicates(server.getUsernames());
+	}
+
+	@Test
+	// many users logging in, sending, reading, deleting accounts and disconnecting at once.
+	// Every message must be delivered exactly once, live, through UNREAD, or still waiting at the end,
+	// and once everyone has left nobody may still look online.
+	public void testMixedWorkload() throws Exception {
+		final Server server = startServer();
+		final int users = WORKERS * 2;
+		final int iterations = 15;
+		final int messagesPerLogin = 5;
+		for (int i = 0; i < users; i++) {
+			assertTrue(server.createUsername("stress" + i));
+		}
+		final Queue<String> sent = new ConcurrentLinkedQueue<String>();
+		final Queue<String> received = new ConcurrentLinkedQueue<String>();
+		final AtomicInteger worker = new AtomicInteger();
+		runConcurrently(WORKERS, new Callable<Void>() {
+			public Void call() throws Exception {
+				int w = worker.getAndIncrement();
+				Random random = new Random(w);
+				for (int i = 0; i < iterations; i++) {
+					// each worker owns two users, so a user never has two sessions and "exactly once" is well defined
+					String me = "stress" + (w * 2 + i % 2);
+					TestClient client = new TestClient(server.getPort());
+					client.send("LOGIN");
+					client.send(me);
+					for (int m = 0; m < messagesPerLogin; m++) {
+						String token = "tok-" + w + "-" + (i * messagesPerLogin + m);
+						client.send("@stress" + random.nextInt(users) + " " + token);
+						sent.add(token);
+					}
+					client.send("UNREAD");
+					if (random.nextBoolean()) {
+						client.quit();
+					}
+					else {
+						client.hangUp();
+					}
+					received.addAll(client.tokens());
+
+					if (i % 5 == 0) { // now and then create and delete a throwaway account too
+						TestClient temp = new TestClient(server.getPort());
+						temp.send("CREATE");
+						temp.send("temp" + w + "x" + i);
+						temp.send("DELETE");
+						temp.waitForClose();
+						assertTrue(temp.saw("Account for temp" + w + "x" + i + " deleted"));
+					}
+				}
+				return null;
+			}
+		});
+		server.stop();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		for (int i = 0; i < users; i++) {
+			while (server.isOnline("stress" + i) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertFalse("stress" + i + " still looks online", server.isOnline("stress" + i));
+		}
+		for (int i = 0; i < users; i++) {
+			for (Message m : server.getUnreadMessages("stress" + i)) {
+				received.add(m.getMessage());
+			}
+		}
+
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (String token : received) {
+			counts.merge(token, 1, Integer::sum);
+		}
+		for (String token : sent) {
+			Integer count = counts.remove(token);
+			assertEquals("times " + token + " was delivered", 1, count == null ? 0 : count.intValue());
+		}
+		assertTrue("delivered messages that were never sent: " + counts.keySet(), counts.isEmpty());
+		assertNoDuplicates(server.getUsernames());
+		assertFalse("a deleted account is still there", server.getUsernames().contains("temp"));
+	}
+
+	@Test
+	// several workers logging in as the same few users at once, so each user has many sessions coming and going.
+	// Messages are queued up first and more are sent during the run. Every session may see a message at most once,
+	// and every message has to reach some session or still be waiting at the end. A user must look online while a worker is
+	// logged in as them, and a message any session read must not still be unread at the end (the read cursors have to move).
+	public void testSharedSessions() throws Exception {
+		final Server server = startServer();
+		final int users = 2;
+		final int iterations = 10;
+		final int messagesPerLogin = 3;
+		final Queue<String> sent = new ConcurrentLinkedQueue<String>();
+		final Set<String> received = ConcurrentHashMap.newKeySet();
+		for (int i = 0; i < users; i++) {
+			assertTrue(server.createUsername("shared" + i));
+		}
+		for (int i = 0; i < 20; i++) { // queued while everyone is offline, using a worker number no worker has
+			String token = "tok-" + WORKERS + "-" + i;
+			server.sendMessage("queuer", "shared" + (i % users), token);
+			sent.add(token);
+		}
+		final AtomicInteger worker = new AtomicInteger();
+		runConcurrently(WORKERS, new Callable<Void>() {
+			public Void call() throws Exception {
+				int w = worker.getAndIncrement();
+				Random random = new Random(w);
+				for (int i = 0; i < iterations; i++) {
+					TestClient client = new TestClient(server.getPort());
+					String user = "shared" + random.nextInt(users);
+					client.send("LOGIN");
+					client.send(user);
+					client.waitFor("HELP (to see the instructions again)"); // sent after the session is added
+					assertTrue(user + " has a session but looks offline", server.isOnline(user));
+					client.send("UNREAD");
+					for (int m = 0; m < messagesPerLogin; m++) {
+						String token = "tok-" + w + "-" + (i * messagesPerLogin + m);
+						client.send("@shared" + random.nextInt(users) + " " + token);
+						sent.add(token);
+					}
+					client.send("UNREAD");
+					if (random.nextBoolean()) {
+						client.quit();
+					}
+					else {
+						client.hangUp();
+					}
+					List<String> tokens = client.tokens();
+					HashSet<String> seen = new HashSet<String>();
+					for (String token : tokens) {
+						assertTrue(token + " reached the same session twice", seen.add(token));
+					}
+					received.addAll(tokens);
+				}
+				return null;
+			}
+		});
+		server.stop();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		for (int i = 0; i < users; i++) {
+			while (server.isOnline("shared" + i) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertFalse("shared" + i + " still looks online", server.isOnline("shared" + i));
+			for (Message m : server.getUnreadMessages("shared" + i)) {
+				assertFalse(m.getMessage() + " was read but is still unread", received.contains(m.getMessage()));
+				received.add(m.getMessage());
+			}
+		}
+		for (String token : sent) {
+			assertTrue(token + " was lost", received.contains(token));
+		}
+	}
+
+	@Test
+	// the same user logging in and out on every thread at once, through the Server methods directly so it runs fast.
+	// Each round about half the threads hold a session and the other half take over in the next round, so adds race
+	// removes that empty the set. Every fifth round nobody is logged in. Between rounds every thread checks that
+	// isOnline and getSessions match the sessions that should be live.
+	public void testSessionCount() throws Exception {
+		final Server server = new Server(0, Files.createTempDirectory("chatstress").toString());
+		final int rounds = 500;
+		final CyclicBarrier step = new CyclicBarrier(WORKERS);
+		final AtomicInteger worker = new AtomicInteger();
+		runConcurrently(WORKERS, new Callable<Void>() {
+			public Void call() throws Exception {
+				int w = worker.getAndIncrement();
+				ServerThread session = new ServerThread(null, server);
+				session.setUsername("same");
+				boolean wasLive = false;
+				for (int r = 0; r < rounds; r++) {
+					boolean live = isLive(w, r);
+					if (live && !wasLive) {
+						server.addThread(session);
+					}
+					else if (!live && wasLive) {
+						server.removeThread(session);
+					}
+					wasLive = live;
+					step.await(10, TimeUnit.SECONDS);
+					int expected = 0;
+					for (int other = 0; other < WORKERS; other++) {
+						expected += isLive(other, r) ? 1 : 0;
+					}
+					assertEquals(expected, server.getSessions("same").size());
+					assertEquals(expected > 0, server.isOnline("same"));
+					assertEquals(live, server.getSessions("same").contains(session));
+					step.await(10, TimeUnit.SECONDS); // nobody moves on until everyone has checked
+				}
+				return null;
+			}
+		});
+	}
+
+	private static boolean isLive(int worker, int round) {
+		return round % 5 != 4 && (worker + round) % 2 == 0;
+	}
+
+	@Test
+	// measure how the offline message path scales from 1 thread to the number of cores.
+	// Every thread sends to a shared pool of offline users and reads some of them back, so they all contend for the same state.
+	// It only prints the numbers, except that no message may go missing at any thread count.
+	public void testThroughputScaling() throws Exception {
+		System.out.println("threads\tops/sec\tspeedup\tavg op (us)");
+		double single = 0;
+		ArrayList<Integer> steps = new ArrayList<Integer>(); // doubling up to the number of cores, which is always the last step
+		steps.add(1);
+		for (int threads = 2; threads < CORES; threads *= 2) {
+			steps.add(threads);
+		}
+		steps.add(Math.max(CORES, 2));
+		for (int threads : steps) {
+			final Server server = new Server(0, Files.createTempDirectory("chatscale").toString());
+			server.setMailboxLimit(1000000, false);
+			final AtomicLong operations = new AtomicLong();
+			final AtomicLong sentCount = new AtomicLong();
+			final AtomicLong readCount = new AtomicLong();
+			final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+			final AtomicInteger worker = new AtomicInteger();
+			long start = System.nanoTime();
+			runConcurrently(threads, new Callable<Void>() {
+				public Void call() {
+					int w = worker.getAndIncrement();
+					Random random = new Random(w);
+					long ops = 0;
+					while (System.nanoTime() < end) {
+						String recipient = "offline" + random.nextInt(16);
+						if (ops % 10 == 9) {
+							readCount.addAndGet(server.getUnreadMessages(recipient).size());
+						}
+						else {
+							server.sendMessage("sender" + w, recipient, "hello");
+							sentCount.incrementAndGet();
+						}
+						ops++;
+					}
+					operations.addAndGet(ops);
+					return null;
+				}
+			});
+			double seconds = (System.nanoTime() - start) / 1e9;
+			for (int i = 0; i < 16; i++) {
+				readCount.addAndGet(server.getUnreadMessages("offline" + i).size());
+			}
+			assertEquals("messages lost with " + threads + " threads", sentCount.get(), readCount.get());
+
+			double throughput = operations.get() / seconds;
+			if (threads == 1) {
+				single = throughput;
+			}
+			System.out.println(threads + "\t" + String.format("%.0f", throughput) + "\t" + String.format("%.2fx", throughput / single)
+					+ "\t" + String.format("%.1f", seconds * threads * 1e6 / operations.get()));
+		}
+	}
+}
@@ -1,10 +1,24 @@
 import static org.junit.Assert.*;
 
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.util.*;
+
 import org.junit.Test;
 
 public class ServerTest {
 	private Server server = new Server(5000);
 	
+	// a server with its own empty data folder, for tests that would otherwise drop the real unread messages
+	private Server scratchServer() {
+		try {
+			return new Server(5000, Files.createTempDirectory("chat").toString());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	@Test 
 	// make sure a non-used username can be created
 	public void testAddUsername() {
@@ -41,4 +55,370 @@ public class ServerTest {
 		assertEquals(false, server.checkUsername("test"));
 	}
 
+	@Test
+	// make sure a full mailbox drops the oldest message and the sender hears about it
+	public void testMailboxLimit() {
+		Server server = scratchServer();
+		server.setMailboxLimit(2, false);
+		server.sendMessage("testsender", "notauser", "one");
+		server.sendMessage("testsender", "notauser", "two");
+		server.sendMessage("testsender", "notauser", "three");
+		assertEquals(1, server.getMetrics().getMessagesEvicted());
+		assertEquals("two", server.getUnreadMessages("notauser").get(0).getMessage());
+		assertEquals(true, server.checkForUnreadMessages("testsender"));
+	}
+
+	@Test
+	// make sure the reject policy refuses new messages once the mailbox is full
+	public void testMailboxReject() {
+		Server server = scratchServer();
+		server.setMailboxLimit(1, true);
+		assertEquals(Server.Delivery.STORED, server.sendMessage("testsender", "notauser", "one", null));
+		assertEquals(Server.Delivery.REJECTED, server.sendMessage("testsender", "notauser", "two", null));
+		assertEquals(1, server.getMetrics().getMessagesRejected());
+		assertEquals(1, server.getUnreadMessages("notauser").size());
+	}
+
+	@Test
+	// make sure old messages are expired and counted
+	public void testExpireMessages() {
+		Server server = scratchServer();
+		server.sendMessage("testsender", "notauser", "hello?");
+		server.setMessageTtl(0);
+		server.expireMessages();
+		assertEquals(false, server.checkForUnreadMessages("notauser"));
+		assertEquals(1, server.getMetrics().getMessagesExpired());
+	}
+
+	@Test
+	// make sure each session of a user gets the unread messages once, and a session that logs in later doesn't see them again
+	public void testUnreadOnTwoSessions() {
+		Server server = scratchServer();
+		server.sendMessage("testsender", "notauser", "one");
+		server.sendMessage("testsender", "notauser", "two");
+		ServerThread phone = new ServerThread(null, server);
+		ServerThread laptop = new ServerThread(null, server);
+		phone.setUsername("notauser");
+		laptop.setUsername("notauser");
+		server.addThread(phone);
+		server.addThread(laptop);
+		assertEquals(2, server.getUnreadMessages(phone).size());
+		assertEquals(false, server.checkForUnreadMessages(phone));
+		assertEquals(true, server.checkForUnreadMessages(laptop));
+		assertEquals(2, server.getUnreadMessages(laptop).size());
+
+		ServerThread tablet = new ServerThread(null, server);
+		tablet.setUsername("notauser");
+		server.addThread(tablet);
+		assertEquals(false, server.checkForUnreadMessages(tablet));
+		assertEquals(false, server.checkForUnreadMessages("notauser"));
+	}
+
+	@Test
+	// make sure a traced offline message is stamped at each hop, and its wait is recorded when it's read
+	public void testLatencyTracing() {
+		Server server = scratchServer();
+		Metrics metrics = server.getMetrics();
+		metrics.setTraceSampleRate(1); // trace everything
+		server.sendMessage("testsender", "notauser", "hi", metrics.startTrace(System.nanoTime()));
+		assertEquals(1, metrics.getHistogram(MessageTrace.RECEIVE_TO_ROUTE).getCount());
+		assertEquals(1, metrics.getHistogram(MessageTrace.ROUTE_TO_PERSIST).getCount());
+		assertEquals(0, metrics.getHistogram(MessageTrace.ROUTE_TO_WRITE).getCount());
+		server.getUnreadMessages("notauser");
+		assertEquals(1, metrics.getHistogram(Metrics.OFFLINE_DWELL).getCount());
+
+		server.sendMessage("testsender", "notauser", "from the server", metrics.startTrace(MessageTrace.NOT_RECEIVED));
+		assertEquals(1, metrics.getHistogram(MessageTrace.RECEIVE_TO_ROUTE).getCount());
+		server.sendMessage("testsender", "notauser", "negative clock", metrics.startTrace(-1000));
+		assertEquals(2, metrics.getHistogram(MessageTrace.RECEIVE_TO_ROUTE).getCount()); // nanoTime is allowed to be negative
+
+		RecordingSession phone = new RecordingSession(server, "notauser"); // the same message read on two devices only waited once
+		RecordingSession laptop = new RecordingSession(server, "notauser");
+		server.addThread(phone);
+		server.addThread(laptop);
+		assertEquals(2, server.getUnreadMessages(phone).size());
+		assertEquals(2, server.getUnreadMessages(laptop).size());
+		assertEquals(3, metrics.getHistogram(Metrics.OFFLINE_DWELL).getCount());
+
+		metrics.setTraceSampleRate(0); // and nothing once it's off
+		server.sendMessage("testsender", "notauser2", "hi again", metrics.startTrace(System.nanoTime()));
+		assertEquals(3, metrics.getHistogram(MessageTrace.ROUTE_TO_PERSIST).getCount());
+	}
+
+	@Test
+	// make sure a chunk written by writeChunk decodes to the same transfer id, offset and bytes, and the string after it still comes through
+	public void testChunkFraming() throws IOException {
+		File file = File.createTempFile("chunk", ".txt");
+		Files.write(file.toPath(), "hello file".getBytes());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Protocol p = new Protocol();
+		FileChannel channel = FileChannel.open(file.toPath());
+		p.writeChunk(Channels.newChannel(bytes), channel, 7, 6, 4);
+		channel.close();
+		assertEquals(Protocol.CHUNK_HEADER + 4, bytes.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeChar(Protocol.STRING_TYPE);
+		out.writeInt(2);
+		out.write("hi".getBytes());
+
+		final ArrayList<String> chunks = new ArrayList<String>();
+		p.setChunkHandler((transferId, offset, data, length) -> chunks.add(transferId + " " + offset + " " + new String(data, 0, length)));
+		assertEquals("hi", p.decode(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+		assertEquals(Arrays.asList("7 6 file"), chunks);
+	}
+
+	@Test
+	// make sure chunks have to come in order, a resent chunk is skipped, and the finished file has the right bytes
+	public void testFileTransferOrder() throws IOException {
+		ServerThread source = new ServerThread(null, scratchServer());
+		source.setUsername("testsender");
+		File spool = new File(Files.createTempDirectory("spool").toFile(), "a.txt");
+		FileTransfer transfer = new FileTransfer(1, source, "notauser", "a.txt", 6, 100, spool);
+		assertEquals(3, transfer.write(0, "abc".getBytes(), 3));
+		assertEquals(3, transfer.write(0, "abc".getBytes(), 3));
+		try {
+			transfer.write(5, "f".getBytes(), 1);
+			fail("a chunk past the end of what was received was accepted");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(6, transfer.write(3, "def".getBytes(), 3));
+		assertEquals(true, transfer.isComplete());
+		transfer.finish();
+		assertEquals("abcdef", new String(Files.readAllBytes(spool.toPath())));
+	}
+
+	@Test
+	// make sure a cut off upload resumes from where it stopped, but a different file with the same name starts over
+	public void testResumeSpooledFile() throws IOException {
+		ServerThread source = new ServerThread(null, scratchServer());
+		source.setUsername("testsender");
+		File spool = new File(Files.createTempDirectory("spool").toFile(), "a.txt");
+		FileTransfer first = new FileTransfer(1, source, "notauser", "a.txt", 6, 100, spool);
+		first.write(0, "abcd".getBytes(), 4);
+		first.close(); // the sender dropped
+
+		FileTransfer same = new FileTransfer(2, source, "notauser", "a.txt", 6, 100, spool);
+		assertEquals(4, same.getReceived());
+		same.close();
+
+		FileTransfer other = new FileTransfer(3, source, "notauser", "a.txt", 2, 200, spool);
+		assertEquals(0, other.getReceived());
+		assertEquals(false, other.isComplete());
+		other.write(0, "xy".getBytes(), 2);
+		other.finish();
+		assertEquals("xy", new String(Files.readAllBytes(spool.toPath())));
+		assertEquals(1, spool.getParentFile().list().length); // no .part or .part.info left behind
+	}
+
+	// a session that keeps the lines sent to it instead of writing them to a socket
+	private static class RecordingSession extends ServerThread {
+		private ArrayList<String> lines = new ArrayList<String>();
+		private boolean connected = true; // false acts like a connection that dropped before the server noticed
+
+		RecordingSession(Server server, String username) {
+			super(null, server);
+			setUsername(username);
+		}
+
+		@Override
+		public boolean sendEncoded(byte[] line) {
+			if (connected) {
+				lines.add(new String(line).trim());
+			}
+			return connected;
+		}
+	}
+
+	@Test
+	// make sure a user who logs in and back out within one window causes no notification, but a real change does
+	public void testPresenceFlapping() {
+		Server server = scratchServer();
+		RecordingSession alice = new RecordingSession(server, "alice");
+		server.addThread(alice);
+		assertEquals(false, server.watch("alice", "bob"));
+		ServerThread bob = new RecordingSession(server, "bob");
+		server.addThread(bob);
+		server.removeThread(bob);
+		server.getPresence().flush();
+		assertEquals(0, alice.lines.size());
+
+		server.addThread(bob);
+		server.getPresence().flush();
+		assertEquals(Arrays.asList(">> Presence: bob is online"), alice.lines);
+	}
+
+	@Test
+	// make sure many users changing in one window gets each watcher a single line
+	public void testPresenceBatching() {
+		Server server = scratchServer();
+		RecordingSession alice = new RecordingSession(server, "alice");
+		RecordingSession carol = new RecordingSession(server, "carol");
+		server.addThread(alice);
+		server.addThread(carol);
+		for (int i = 0; i < 5; i++) {
+			server.watch("alice", "user" + i);
+			server.watch("carol", "user" + i);
+		}
+		for (int i = 0; i < 5; i++) {
+			server.addThread(new RecordingSession(server, "user" + i));
+		}
+		server.getPresence().flush();
+		assertEquals(1, alice.lines.size());
+		assertEquals(1, carol.lines.size());
+		for (int i = 0; i < 5; i++) {
+			assertTrue(alice.lines.get(0).contains("user" + i + " is online"));
+		}
+	}
+
+	@Test
+	// make sure a deleted user is gone from both sides, as a watcher and as someone being watched
+	public void testPresenceForget() {
+		Server server = scratchServer();
+		RecordingSession alice = new RecordingSession(server, "alice");
+		server.addThread(alice);
+		server.watch("alice", "bob");
+		server.watch("bob", "alice");
+		server.removeUser("bob");
+		assertEquals(0, server.getWatching("bob").size());
+		assertEquals(0, server.getWatching("alice").size());
+
+		server.addThread(new RecordingSession(server, "bob"));
+		server.getPresence().flush();
+		assertEquals(0, alice.lines.size());
+	}
+
+	@Test
+	// make sure deleting an account on one device logs out the others, drops the mailbox, and tells watchers
+	public void testDeleteLogsOutSessions() {
+		Server server = scratchServer();
+		server.createUsername("bob");
+		RecordingSession alice = new RecordingSession(server, "alice");
+		server.addThread(alice);
+		server.watch("alice", "bob");
+		RecordingSession phone = new RecordingSession(server, "bob");
+		RecordingSession laptop = new RecordingSession(server, "bob");
+		server.addThread(phone);
+		server.addThread(laptop);
+		server.getPresence().flush();
+		alice.lines.clear();
+		phone.connected = false; // so the message waits in the mailbox
+		laptop.connected = false;
+		server.sendMessage("alice", "bob", "hi");
+		phone.connected = true;
+		laptop.connected = true;
+
+		server.removeUser("bob", phone);
+		assertEquals(0, phone.lines.size());
+		assertEquals(1, laptop.lines.size());
+		assertEquals(false, server.isOnline("bob"));
+		assertEquals(1, alice.lines.size());
+		assertEquals(true, alice.lines.get(0).contains("bob went offline"));
+
+		assertEquals(true, server.createUsername("bob"));
+		assertEquals(0, server.getSessions("bob").size());
+		assertEquals(false, server.checkForUnreadMessages("bob"));
+	}
+
+	@Test
+	// make sure every kind of record in a capture file reads back the way it was written
+	public void testCaptureRoundTrip() throws IOException {
+		File file = File.createTempFile("traffic", ".cap");
+		TrafficCapture capture = new TrafficCapture(file.getPath());
+		capture.opened(3);
+		capture.record(3, 10, Protocol.STRING_TYPE, "xLOGINx".getBytes(), 1, 5);
+		capture.recordChunk(3, 20, 9, 16384, "data".getBytes(), 4);
+		capture.closed(3, 30);
+		capture.close();
+
+		ArrayList<TrafficCapture.Frame> frames = TrafficCapture.read(file.getPath());
+		assertEquals(4, frames.size());
+		assertEquals(TrafficCapture.OPEN, frames.get(0).type);
+		assertEquals(Protocol.STRING_TYPE, frames.get(1).type);
+		assertEquals(10, frames.get(1).micros);
+		assertEquals("LOGIN", new String(frames.get(1).body));
+		TrafficCapture.Frame chunk = frames.get(2);
+		assertEquals(Protocol.CHUNK_TYPE, chunk.type);
+		DataInputStream body = new DataInputStream(new ByteArrayInputStream(chunk.body));
+		assertEquals(9, body.readInt());
+		assertEquals(16384, body.readLong());
+		assertEquals(TrafficCapture.CHUNK_HEADER + 4, chunk.body.length);
+		assertEquals(TrafficCapture.CLOSE, frames.get(3).type);
+		for (TrafficCapture.Frame frame : frames) {
+			assertEquals(3, frame.connectionId);
+		}
+	}
+
+	@Test
+	// make sure messages read on one device but kept for another don't count toward the mailbox limit,
+	// and nobody is told they expired
+	public void testReadMessagesNotDropped() {
+		Server server = scratchServer();
+		server.setMailboxLimit(2, true);
+		server.sendMessage("testsender", "notauser", "one");
+		server.sendMessage("testsender", "notauser", "two");
+		RecordingSession phone = new RecordingSession(server, "notauser");
+		RecordingSession laptop = new RecordingSession(server, "notauser");
+		server.addThread(phone);
+		server.addThread(laptop);
+		assertEquals(2, server.getUnreadMessages(phone).size());
+
+		phone.connected = false; // so the next message goes to the mailbox even though they're still logged in
+		laptop.connected = false;
+		server.sendMessage("testsender", "notauser", "three");
+		assertEquals(0, server.getMetrics().getMessagesRejected());
+
+		server.setMessageTtl(0);
+		server.expireMessages();
+		assertEquals(1, server.getMetrics().getMessagesExpired()); // only three, which nobody read
+		assertEquals(1, server.getUnreadMessages("testsender").size());
+	}
+
+	@Test
+	// make sure someone who starts watching while a change is waiting isn't told the same thing twice,
+	// while the watchers from before still hear about the change
+	public void testPresenceWatchDuringWindow() {
+		Server server = scratchServer();
+		RecordingSession alice = new RecordingSession(server, "alice");
+		RecordingSession carol = new RecordingSession(server, "carol");
+		server.addThread(alice);
+		server.addThread(carol);
+		server.watch("alice", "bob");
+		server.addThread(new RecordingSession(server, "bob"));
+		assertEquals(true, server.watch("carol", "bob"));
+		server.getPresence().flush();
+		assertEquals(Arrays.asList(">> Presence: bob is online"), alice.lines);
+		assertEquals(0, carol.lines.size());
+
+		ServerThread bob = server.getSessions("bob").iterator().next(); // and if bob flaps back after carol was told, only carol hears
+		server.removeThread(bob);
+		server.unwatch("carol", "bob");
+		assertEquals(false, server.watch("carol", "bob"));
+		server.addThread(bob);
+		server.getPresence().flush();
+		assertEquals(1, alice.lines.size());
+		assertEquals(Arrays.asList(">> Presence: bob is online"), carol.lines);
+	}
+
+	@Test
+	// make sure an unread message saved before messages had a timestamp gets one saved the first time it's loaded,
+	// so it can expire instead of looking new after every restart
+	public void testOldMessagesGetTimestamp() throws IOException {
+		File folder = Files.createTempDirectory("chat").toFile();
+		File messages = new File(folder, "unreadMessages.txt");
+		Files.write(messages.toPath(), "testsender-|::|-notauser-|::|-old message\n".getBytes());
+		new Server(5000, folder.getPath());
+		String line = new String(Files.readAllBytes(messages.toPath())).trim();
+		assertEquals(4, line.split(java.util.regex.Pattern.quote("-|::|-")).length);
+	}
+
+	@Test
+	// make sure nobody can make an account with the name the server's notices come from
+	public void testServerNameReserved() {
+		Server server = scratchServer();
+		assertEquals(false, server.createUsername("server"));
+		assertEquals(false, server.createUsername("Server"));
+		assertEquals(false, server.checkUsername("server"));
+	}
+
 }
@@ -1,6 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -14,22 +18,49 @@ import java.util.ArrayList;
 		private String username;
 		private Server server;
 		private PrintWriter writer;
+		private OutputStream out; // the raw stream under the writer, for file data
+		private final ReentrantLock outLock = new ReentrantLock(true); // fair so chat lines get a turn in between file chunks
 		private final String instructions = "\n>> To send a message to a user, enter @username message (ex: @testuser hi!).\n"
 				+ ">> You can also enter any of the following commands: \n>> USERS (to see all users in the database)\n"
-				+ ">> DELETE (to delete your account) \n>> UNREAD (to check for unread messages) \n>> QUIT (to quit the app) \n" 
+				+ ">> DELETE (to delete your account) \n>> UNREAD (to check for unread messages) \n>> QUIT (to quit the app) \n>> STATS (to see server stats) \n" 
+				+ ">> WATCH @username (to be told when they come online or go offline) \n>> UNWATCH @username (to stop)\n"
+				+ ">> SEND_FILE @username path (to send a file) \n>> FILES (to see files sent to you) \n>> GET_FILE sender/name (to download one)\n"
 				+ ">> HELP (to see the instructions again).\n";
 		private final String loginString = ">> Please type LOGIN if you already have an account or CREATE to make a new one.\n"
 				+ "You can also enter QUIT to quit the program.\n";
 		private Protocol p;
+		private long readCursor = -1; // the last unread message this session has shown, see Mailbox
+		private boolean readAFrame; // for reply markers, which are only sent once there is a frame to reply to
+		private volatile boolean loggedOut; // set when another thread ends this session, see logout()
 		
 		/** 
 		 * The ClientThread constructor, which takes in a Socket and Server
 		 * @param 	socket and server this thread connect to
 		 */
 		public ServerThread(Socket socket, Server server) {
+			this(socket, server, 0);
+		}
+		
+		/** 
+		 * This constructor also takes in an id for the connection, which is used to tell connections apart in traffic captures
+		 * @param 	socket and server this thread connect to, and the connection id
+		 */
+		public ServerThread(Socket socket, Server server, int id) {
 			this.socket = socket;
 			this.server = server;
+			this.id = id;
 			p = new Protocol();
+			if (server.getCapture() != null) {
+				p.setCapture(server.getCapture(), id);
+			}
+			p.setChunkHandler(new Protocol.ChunkHandler() {
+				public void handleChunk(int transferId, long offset, byte[] data, int length) throws IOException {
+					receiveChunk(transferId, offset, data, length);
+					if (server.sendsReplyMarkers()) {
+						sendLine(Protocol.REPLY_END);
+					}
+				}
+			});
 		}
 		
 		/** 
@@ -44,15 +75,184 @@ import java.util.ArrayList;
 			return this.username;
 		}
 		
+		public long getReadCursor() {
+			return readCursor;
+		}
+		
+		public void setReadCursor(long readCursor) {
+			this.readCursor = readCursor;
+		}
+		
 		/**
 		 * This method sends a message to the client when the user is online.
 		 * @param message
 		 */
 		public void sendMessage(String sender, String message) {
-			writer.println("\n>> " + sender + ": " + message + "\n");
+			sendLine("\n>> " + sender + ": " + message + "\n");
+		}
+		
+		/**
+		 * This method sends a line of text to the client. Every write goes through the lock
+		 * so that text from other threads can never land in the middle of a file chunk.
+		 * @param 	line
+		 */
+		public void sendLine(String line) {
+			outLock.lock();
+			try {
+				writer.println(line);
+			} finally {
+				outLock.unlock();
+			}
+		}
+		
+		/**
+		 * This method ends the session from another thread, for example when the account is deleted on another device.
+		 * The user is told why, then the socket is closed so run() stops at its next read.
+		 * @param 	reason, the line to send before closing
+		 */
+		public void logout(String reason) {
+			loggedOut = true;
+			sendEncoded(encodeLine(reason));
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					System.out.println("Error closing socket: " + e);
+				}
+			}
+		}
+		
+		/**
+		 * This method encodes a line the same way the writer does, so it can be encoded once and sent to many sessions.
+		 * @param 	line
+		 * @return	the bytes to pass to sendEncoded
+		 */
+		public static byte[] encodeLine(String line) {
+			return (line + System.lineSeparator()).getBytes(Charset.defaultCharset());
+		}
+		
+		/**
+		 * This method sends a line that was already encoded with encodeLine.
+		 * @param 	line, the encoded line
+		 * @return	true if it was written, false if the connection is closed
+		 */
+		public boolean sendEncoded(byte[] line) {
+			outLock.lock();
+			try {
+				out.write(line);
+				out.flush();
+				return true;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				outLock.unlock();
+			}
+		}
+		
+		/**
+		 * This method relays one chunk of a file to the client while the sender is still uploading it.
+		 * @param 	sender, who sent the file
+		 * @param 	name, the file name
+		 * @param 	offset, where in the file the chunk starts
+		 * @param 	total, the size of the whole file
+		 * @param 	data, the buffer holding the chunk
+		 * @param 	length, the number of bytes of the buffer to send
+		 * @throws 	IOException if the client can't be reached
+		 */
+		public void sendFileData(String sender, String name, long offset, long total, byte[] data, int length) throws IOException {
+			outLock.lock();
+			try {
+				writer.println(fileHeader(sender, name, offset, length, total));
+				if (writer.checkError()) { // PrintWriter hides IOExceptions, so check for them here
+					throw new IOException("connection to " + username + " is closed");
+				}
+				out.write(data, 0, length);
+				out.flush();
+			} finally {
+				outLock.unlock();
+			}
+		}
+		
+		/**
+		 * This method streams a spooled file from disk to the client starting at offset.
+		 * The bytes go straight from the file to the socket with transferTo, one chunk at a time,
+		 * and the lock is let go in between chunks so chat messages don't wait for the whole file.
+		 * The file is kept until the client says it got all of it (see FILE_ACK in run), so a download cut off
+		 * with data still in the socket's buffer can be asked for again.
+		 * @param 	file, the spooled file
+		 * @param 	sender, who sent the file
+		 * @param 	offset, where to start, for resuming a download
+		 * @throws 	IOException
+		 */
+		public void streamFile(File file, String sender, long offset) throws IOException {
+			WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				long total = channel.size();
+				long position = Math.max(0, Math.min(offset, total));
+				do { // a do/while so an empty file still gets one (empty) chunk
+					int length = (int) Math.min(Protocol.CHUNK_SIZE, total - position);
+					outLock.lock();
+					try {
+						writer.println(fileHeader(sender, file.getName(), position, length, total));
+						long sent = 0;
+						while (sent < length) {
+							sent += channel.transferTo(position + sent, length - sent, target);
+						}
+					} finally {
+						outLock.unlock();
+					}
+					position += length;
+				}
+				while (position < total);
+			} finally {
+				channel.close();
+			}
+		}
+		
+		private String fileHeader(String sender, String name, long offset, int length, long total) {
+			return Protocol.FILE_DATA + " " + offset + " " + length + " " + total + " " + sender + " " + name;
+		}
+		
+		/**
+		 * This method is called by the protocol for each file chunk the client uploads.
+		 * It passes the chunk on to the server and acknowledges it, which lets the client send more.
+		 * If the chunk fails the client is told so it can stop sending.
+		 */
+		private void receiveChunk(int transferId, long offset, byte[] data, int length) {
+			try {
+				FileTransfer transfer = server.receiveChunk(this, transferId, offset, data, length);
+				sendLine(Protocol.FILE_ACK + " " + transferId + " " + transfer.getReceived());
+				if (transfer.isComplete()) {
+					if (transfer.isSpooled()) {
+						sendLine("\n>> " + transfer.getRecipient() + " is offline. They will get " + transfer.getName() + " next time they login.\n");
+					}
+					else {
+						sendLine("\n>> File " + transfer.getName() + " sent to " + transfer.getRecipient() + ".\n");
+					}
+				}
+			} catch (IOException e) {
+				sendLine(Protocol.FILE_ERROR + " " + transferId + " " + e.getMessage());
+			}
 		}
 	
 		
+		/**
+		 * This method reads the next string frame from the client. Frames are handled one at a time,
+		 * so when the server comes back for the next one everything it had to say about the last one has been sent.
+		 * That's where the reply marker goes when the server is started with -Dchat.replyMarkers=true (see Replay).
+		 * @param 	reader, the stream from the client
+		 * @return	the decoded string
+		 * @throws 	IOException
+		 */
+		private String readFrame(DataInputStream reader) throws IOException {
+			if (readAFrame && server.sendsReplyMarkers()) {
+				sendLine(Protocol.REPLY_END);
+			}
+			readAFrame = true;
+			return p.decode(reader);
+		}
+		
 		/**
 		 * This method runs the thread
 		 * It is very long with a lot of logic to handle the different cases from the user
@@ -61,8 +261,9 @@ import java.util.ArrayList;
 			try {
 	            //BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream())); // input from client
 	            DataInputStream reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-				writer = new PrintWriter(socket.getOutputStream(), true);  // output to client
-	            writer.println("\n>> Welcome to the chat app! \n");
+				out = socket.getOutputStream();
+				writer = new PrintWriter(out, true);  // output to client
+	            sendLine("\n>> Welcome to the chat app! \n");
 
 	            
 				/**
@@ -71,8 +272,8 @@ import java.util.ArrayList;
 				 * In case they forget whether or not they have an account already.
 				 */
 				do {
-		            writer.println(loginString);
-					String account = p.decode(reader).trim(); // decode into a String
+		            sendLine(loginString);
+					String account = readFrame(reader).trim(); // decode into a String
 					
 					/**
 					 * This code got a bit messy and might be easier to read in a switch/case - sorry
@@ -81,54 +282,60 @@ import java.util.ArrayList;
 					 * and prevents a new user from creating an account with a username that's already taken.
 					 */
 					if (account.equalsIgnoreCase("login")) {
-						writer.println("\n>> Enter your username\n");
-						String username = p.decode(reader);
+						sendLine("\n>> Enter your username\n");
+						String username = readFrame(reader);
 						if (!server.checkUsername(username)) {
-							writer.println("\n>> Sorry, that username is not in our system.\n");
+							sendLine("\n>> Sorry, that username is not in our system.\n");
 			 			}
 						else {
-							writer.println("\n>> Welcome back " + username + "!\n");
+							sendLine("\n>> Welcome back " + username + "!\n");
 							setUsername(username);
 						}
 					}
 					else if (account.equalsIgnoreCase("create")) {
-						writer.println("\n>> Enter your desired username");
-						String username = p.decode(reader);
-						if (server.checkUsername(username)) {
-							writer.println("\n>> Sorry, that username is already taken. Please try another one.\n");
+						sendLine("\n>> Enter your desired username");
+						String username = readFrame(reader);
+						if (!server.createUsername(username)) {
+							sendLine("\n>> Sorry, that username is already taken. Please try another one.\n");
 						}
 						else {
-							server.addUsername(username);
-							writer.println("\n>> Welcome, " + username);
+							sendLine("\n>> Welcome, " + username);
 							setUsername(username);
 						}
 					}
 					else if (account.equalsIgnoreCase("quit")) { // let the user quit if they want
 						socket.close();
+						return; // nothing else to do for this connection, and reading again would just throw
 					}
 				}
 				while (username == null);
 				
 				server.addThread(this); // now that the thread has a username associated with it, add it to active threads
 
-				if (server.checkForUnreadMessages(username)) { // check for any undelivered messages on login to let the user know
-					writer.println("\n>> You have unread messages.\n");
+				if (server.checkForUnreadMessages(this)) { // check for any undelivered messages on login to let the user know
+					sendLine("\n>> You have unread messages.\n");
+				}
+				if (server.getPendingFiles(username).size() > 0) { // same for files sent while they were away
+					sendLine("\n>> You have files waiting. Type FILES to see them.\n");
 				}
 				
-				writer.println(instructions); // then print instructions for actions after login
+				sendLine(instructions); // then print instructions for actions after login
 				String input;
 				
 				do { 
-					input = p.decode(reader).trim();
+					input = readFrame(reader).trim();
 
 					/**
 					 * Easy cases to print out all users in the database and reprint instructions.
 					 */
 					if (input.equals("USERS")) {
-						writer.println("\n>> " + server.getUsernames() + "\n");
+						sendLine("\n>> " + server.getUsernames() + "\n");
 					}
 					else if (input.equals("HELP")) {
-						writer.println(instructions);
+						sendLine(instructions);
+					}
+					else if (input.equals("STATS")) {
+						sendLine("\n>> " + server.getMetrics() + "\n");
 					}
 					
 					/**
@@ -138,16 +345,16 @@ import java.util.ArrayList;
 					 */
 					else if (input.equals("DELETE")) {
 						if (server.checkForUnreadMessages(username)) {
-							writer.println("\n>> You have unread messages. Are you sure you want to delete your account?\n");
-							String yesNo = p.decode(reader).trim();
+							sendLine("\n>> You have unread messages. Are you sure you want to delete your account?\n");
+							String yesNo = readFrame(reader).trim();
 							if ((yesNo.equalsIgnoreCase("no")) || (yesNo.equalsIgnoreCase("n"))) {
-								writer.println("\n>> Account not deleted.\n");
+								sendLine("\n>> Account not deleted.\n");
 								continue;
 							};
 						}
 						
-						server.removeUser(username);
-						writer.println("\n>> Account for " + username + " deleted.\n");
+						server.removeUser(username, this);
+						sendLine("\n>> Account for " + username + " deleted.\n");
 						break;
 					}
 					
@@ -161,15 +368,19 @@ import java.util.ArrayList;
 						String recipient = input.substring(1, input.indexOf(' ')); // username is from the @ to first space
 						String message = input.substring(input.indexOf(' ') + 1); // message is from first space to end
 						if (!server.checkUsername(recipient)) { // if the recipient does not exist
-							writer.println("\n>> Sorry the user " + recipient + " does not exist.\n");
+							sendLine("\n>> Sorry the user " + recipient + " does not exist.\n");
 							continue;
 						}
-						boolean sent = server.sendMessage(username, recipient, message); // message includes sender info
-						if (sent) {
-							writer.println("\n>> Message sent to " + recipient + ".\n");
+						MessageTrace trace = server.getMetrics().startTrace(p.getLastReceived()); // null unless this one is sampled
+						Server.Delivery delivery = server.sendMessage(username, recipient, message, trace); // message includes sender info
+						if (delivery == Server.Delivery.DELIVERED) {
+							sendLine("\n>> Message sent to " + recipient + ".\n");
+						}
+						else if (delivery == Server.Delivery.STORED) {
+							sendLine("\n>>" + recipient + " is currently offline. They will be notified of your message next time they login.\n");
 						}
 						else {
-							writer.println("\n>>" + recipient + " is currently offline. They will be notified of your message next time they login.\n");
+							sendLine("\n>> Sorry, " + recipient + " is offline and their mailbox is full.\n");
 						}
 					}
 					
@@ -178,9 +389,9 @@ import java.util.ArrayList;
 					 * If there are get the list and then print them out on separate lines
 					 */
 					else if (input.equals("UNREAD")) {
-						ArrayList<Message> unreads = server.getUnreadMessages(username);
+						ArrayList<Message> unreads = server.getUnreadMessages(this); // only the ones this session hasn't seen yet
 						if (unreads.size() < 1) {
-							writer.println("\n>> You have no unread messages. \n");
+							sendLine("\n>> You have no unread messages. \n");
 							continue;
 						}
 						for (int i = 0; i < unreads.size(); i++) {
@@ -188,11 +399,122 @@ import java.util.ArrayList;
 							sendMessage(m.getSender(), m.getMessage());
 						}
 					}
+					/**
+					 * WATCH @username subscribes to a user's presence and tells the user where things stand right now.
+					 * WATCH on its own lists who the user is watching, and UNWATCH @username stops the notifications.
+					 */
+					else if (input.equals("WATCH")) {
+						sendLine("\n>> You are watching " + server.getWatching(username) + "\n");
+					}
+					else if (input.startsWith("WATCH @")) {
+						String user = input.substring(7).trim().toLowerCase();
+						if (!server.checkUsername(user)) {
+							sendLine("\n>> Sorry the user " + user + " does not exist.\n");
+							continue;
+						}
+						boolean online = server.watch(username, user);
+						sendLine("\n>> Watching " + user + ", who is " + (online ? "online" : "offline") + " right now.\n");
+					}
+					else if (input.startsWith("UNWATCH @")) {
+						String user = input.substring(9).trim().toLowerCase();
+						if (server.unwatch(username, user)) {
+							sendLine("\n>> Stopped watching " + user + ".\n");
+						}
+						else {
+							sendLine("\n>> You weren't watching " + user + ".\n");
+						}
+					}
+					
+					/**
+					 * SEND_FILE @username size modified name starts (or resumes) an upload. The client turns the path the user typed
+					 * into the size, modified time and name. The client is told the transfer id and the offset to start from, then sends the file in chunks.
+					 */
+					else if (input.startsWith("SEND_FILE ")) {
+						String[] parts = input.split(" ", 5);
+						if (parts.length < 5 || !parts[1].startsWith("@")) {
+							sendLine("\n>> Usage: SEND_FILE @username path\n");
+							continue;
+						}
+						String recipient = parts[1].substring(1).toLowerCase();
+						if (!server.checkUsername(recipient)) {
+							sendLine("\n>> Sorry the user " + recipient + " does not exist.\n");
+							continue;
+						}
+						try {
+							FileTransfer transfer = server.startFileTransfer(this, recipient, parts[4], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+							sendLine(Protocol.FILE_READY + " " + transfer.getId() + " " + transfer.getReceived() + " " + parts[4]);
+						} catch (IOException | NumberFormatException e) {
+							sendLine("\n>> Sorry, " + parts[4] + " could not be sent: " + e.getMessage() + "\n");
+						}
+					}
+					
+					/**
+					 * FILES lists the files waiting for the user, and GET_FILE sender/name offset total streams one of them.
+					 * The offset and total come from a partial download the client already has, if any.
+					 * The download runs on its own thread so the user can keep chatting while it goes.
+					 */
+					else if (input.equals("FILES")) {
+						ArrayList<String> files = server.getPendingFiles(username);
+						if (files.size() < 1) {
+							sendLine("\n>> You have no files waiting.\n");
+							continue;
+						}
+						sendLine("\n>> " + files + "\n");
+					}
+					else if (input.startsWith("GET_FILE ")) {
+						String[] parts = input.split(" ");
+						final File file = server.getPendingFile(username, parts[1]);
+						if (file == null) {
+							sendLine("\n>> Sorry, there is no file " + parts[1] + ".\n");
+							continue;
+						}
+						final String sender = parts[1].substring(0, parts[1].indexOf('/'));
+						long resumeFrom = 0;
+						long total = -1; // the size of the file the client's partial download came from, if it has one
+						try {
+							resumeFrom = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+							total = parts.length > 3 ? Long.parseLong(parts[3]) : -1;
+						} catch (NumberFormatException e) {
+							sendLine("\n>> Usage: GET_FILE sender/name\n");
+							continue;
+						}
+						if (total != file.length()) { // the partial download is of some other file, so start over
+							resumeFrom = 0;
+						}
+						else if (resumeFrom >= total) { // the client already has all of it, so it can go
+							file.delete();
+							sendLine("\n>> You already have " + parts[1] + ".\n");
+							continue;
+						}
+						final long offset = resumeFrom;
+						new Thread() {
+							public void run() {
+								try {
+									streamFile(file, sender, offset);
+								} catch (IOException e) {
+									System.out.println("Error sending " + file + " to " + username + ": " + e);
+								}
+							}
+						}.start();
+					}
+					
+					/**
+					 * FILE_ACK sender/name size is sent by the client once a download is complete and saved, which is when
+					 * the server can delete its copy. The size has to match so a newer file with the same name isn't deleted.
+					 */
+					else if (input.startsWith(Protocol.FILE_ACK + " ")) {
+						String[] parts = input.split(" ");
+						File file = parts.length > 2 ? server.getPendingFile(username, parts[1]) : null;
+						if (file != null && String.valueOf(file.length()).equals(parts[2])) {
+							file.delete();
+						}
+					}
+					
 					/**
 					 * Generic message for any unsupported prompt
 					 */
 					else {
-						writer.println(">> Sorry I don't understand how to process that.\n");
+						sendLine(">> Sorry I don't understand how to process that.\n");
 					}
 				}
 				
@@ -200,14 +522,30 @@ import java.util.ArrayList;
 				
 				
 			// this code executes when the user enters QUIT or DELETE
-				writer.println(">> Thanks for using the chat app!\n");
+				sendLine(">> Thanks for using the chat app!\n");
 				server.removeThread(this);
+				server.abandonFileTransfers(this);
 				socket.close();
 				
 				
+			} catch (EOFException e) {
+				// the client hung up without a QUIT, which is normal, so no stack trace
+				server.removeThread(this); // make sure they don't still look online
+				server.abandonFileTransfers(this);
 			} catch (IOException e) {
-				e.printStackTrace();
-			} 
+				server.removeThread(this); // the connection dropped without a QUIT, so make sure they don't still look online
+				server.abandonFileTransfers(this);
+				if (!loggedOut) { // logout() closing the socket isn't an error
+					e.printStackTrace();
+				}
+			} finally {
+				p.endCapture();
+				try {
+					socket.close(); // closing twice is fine, and this makes sure a client that just hung up gets the socket closed
+				} catch (IOException e) {
+					System.out.println("Error closing socket: " + e);
+				}
+			}
 		}
 
 	}
\ No newline at end of file
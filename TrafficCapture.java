@@ -0,0 +1,145 @@
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * This class records every frame the server receives into a binary capture file, so real traffic can be replayed
+ * later against a new build with the Replay tool. It is turned on by starting the server with -Dchat.capture=<file>.
+ *
+ * The file starts with a 4 byte magic number and a 4 byte version. After that every record is:
+ * a 4 byte connection id, an 8 byte time in microseconds, a 2 byte type, a 4 byte body length, and the body.
+ * The body is exactly the bytes that came after the type on the wire, minus the length, so replaying a record
+ * just means writing the type, the data length, and the body back out.
+ * OPEN records use the time since the capture started so connections can be opened at the right moment.
+ * All other records use the time since their own connection opened.
+ */
+public class TrafficCapture {
+	public static final int MAGIC = 0x43484154; // "CHAT"
+	public static final int VERSION = 1;
+	public static final char OPEN = 'o';
+	public static final char CLOSE = 'c';
+	public static final int CHUNK_HEADER = 12; // the transfer id and offset at the start of a chunk's body
+
+	private DataOutputStream out;
+	private long start;
+
+	/**
+	 * This class stores one record read back from a capture file.
+	 */
+	public static class Frame {
+		public int connectionId;
+		public long micros;
+		public char type;
+		public byte[] body;
+	}
+
+	/**
+	 * The constructor opens the capture file and writes the header.
+	 * @param 	filename, the capture file to create
+	 * @throws 	IOException
+	 */
+	public TrafficCapture(String filename) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 64 * 1024));
+		this.start = System.nanoTime();
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	/**
+	 * This method records a new connection.
+	 * @return	the time the connection opened in nanoseconds, which its other records are measured from
+	 */
+	public long opened(int connectionId) {
+		long now = System.nanoTime();
+		record(connectionId, (now - start) / 1000, OPEN, new byte[0], 0, 0);
+		return now;
+	}
+
+	/**
+	 * This method records a connection closing and flushes the file, so everything up to here is saved even if the server is killed.
+	 */
+	public synchronized void closed(int connectionId, long micros) {
+		record(connectionId, micros, CLOSE, new byte[0], 0, 0);
+		try {
+			out.flush();
+		} catch (IOException e) {
+			System.out.println("Error flushing capture: " + e);
+		}
+	}
+
+	/**
+	 * This method records a frame whose body is already in one array, like a string.
+	 */
+	public synchronized void record(int connectionId, long micros, char type, byte[] body, int offset, int length) {
+		try {
+			out.writeInt(connectionId);
+			out.writeLong(micros);
+			out.writeChar(type);
+			out.writeInt(length);
+			out.write(body, offset, length);
+		} catch (IOException e) {
+			System.out.println("Error writing capture: " + e);
+		}
+	}
+
+	/**
+	 * This method records a file chunk, whose body is the transfer id and offset followed by the data.
+	 */
+	public synchronized void recordChunk(int connectionId, long micros, int transferId, long fileOffset, byte[] data, int length) {
+		try {
+			out.writeInt(connectionId);
+			out.writeLong(micros);
+			out.writeChar(Protocol.CHUNK_TYPE);
+			out.writeInt(CHUNK_HEADER + length);
+			out.writeInt(transferId);
+			out.writeLong(fileOffset);
+			out.write(data, 0, length);
+		} catch (IOException e) {
+			System.out.println("Error writing capture: " + e);
+		}
+	}
+
+	/**
+	 * This method flushes and closes the capture file. The server calls it on shutdown.
+	 */
+	public synchronized void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Error closing capture: " + e);
+		}
+	}
+
+	/**
+	 * This method reads all of the records in a capture file, in the order they were written.
+	 * @param 	filename, the capture file
+	 * @return	an ArrayList of Frames
+	 * @throws 	IOException if the file isn't a capture file
+	 */
+	public static ArrayList<Frame> read(String filename) throws IOException {
+		ArrayList<Frame> frames = new ArrayList<Frame>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(filename + " is not a version " + VERSION + " capture file");
+			}
+			while (true) {
+				Frame frame = new Frame();
+				try {
+					frame.connectionId = in.readInt();
+				} catch (EOFException e) { // the normal way to reach the end
+					break;
+				}
+				frame.micros = in.readLong();
+				frame.type = in.readChar();
+				frame.body = new byte[in.readInt()];
+				in.readFully(frame.body);
+				frames.add(frame);
+			}
+		} catch (EOFException e) {
+			System.out.println("Capture " + filename + " ends in the middle of a record, ignoring the rest");
+		} finally {
+			in.close();
+		}
+		return frames;
+	}
+}